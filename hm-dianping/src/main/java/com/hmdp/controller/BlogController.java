@@ -86,4 +86,9 @@ public class BlogController {
         return blogService.queryBlogOfFollow(offset, maxTime);
     }
 
+    @GetMapping("/feed/job/{id}")
+    public Result queryFeedJob(@PathVariable("id") Long blogId) {
+        return blogService.queryFeedJob(blogId);
+    }
+
 }
@@ -44,10 +44,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        //保存数据
-        shopService.save(shop);
-        //返回店铺id
-        return Result.ok(shop.getId());
+        //保存数据，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
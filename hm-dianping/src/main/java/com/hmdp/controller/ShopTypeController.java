@@ -2,14 +2,13 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeList;
 import com.hmdp.entity.ShopType;
 import com.hmdp.service.IShopTypeService;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -26,9 +25,22 @@ public class ShopTypeController {
     private IShopTypeService typeService;
 
     @GetMapping("list")
-    public Result queryTypeList() {
-        List<ShopType> typeList = typeService
-                .query().orderByAsc("sort").list();
-        return Result.ok(typeList);
+    public Result queryTypeList(WebRequest request) {
+        ShopTypeList typeList = typeService.queryTypeList();
+        //If-None-Match与版本一致，返回304，不返回数据
+        if (request.checkNotModified(typeList.getVersion())) {
+            return null;
+        }
+        return Result.ok(typeList.getTypes());
+    }
+
+    @PostMapping
+    public Result saveShopType(@RequestBody ShopType shopType) {
+        return typeService.saveShopType(shopType);
+    }
+
+    @PutMapping
+    public Result updateShopType(@RequestBody ShopType shopType) {
+        return typeService.updateShopType(shopType);
     }
 }
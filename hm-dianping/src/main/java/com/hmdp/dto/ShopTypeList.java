@@ -0,0 +1,15 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class ShopTypeList {
+    //内容的摘要，作为ETag
+    private String version;
+    private List<ShopType> types;
+}
@@ -25,4 +25,6 @@ public interface IBlogService extends IService<Blog> {
     Result saveBlog(Blog blog);
 
     Result queryBlogOfFollow(Integer offset, Long maxTime);
+
+    Result queryFeedJob(Long blogId);
 }
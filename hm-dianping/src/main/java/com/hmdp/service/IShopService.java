@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+
 /**
  * <p>
  *  服务类
@@ -16,7 +18,11 @@ public interface IShopService extends IService<Shop> {
     // ctrl+b转到实现类
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    int warmUpShopCache(Collection<Long> ids);
 }
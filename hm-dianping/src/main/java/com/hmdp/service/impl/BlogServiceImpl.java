@@ -1,6 +1,8 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
@@ -14,18 +16,29 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FeedPushExecutor;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.DefaultTypedTuple;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -36,8 +49,20 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    private static final DefaultRedisScript<List> LIKE_FLUSH_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("lua/like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+
+        LIKE_FLUSH_SCRIPT = new DefaultRedisScript<>();
+        LIKE_FLUSH_SCRIPT.setLocation(new ClassPathResource("lua/likeFlush.lua"));
+        LIKE_FLUSH_SCRIPT.setResultType(List.class);
+    }
 
     @Resource
     private IUserService userService;
@@ -48,22 +73,130 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private FeedPushExecutor feedPushExecutor;
+
+    @Resource
+    private RedissonClient redissonClient;
+    //粉丝数达到该值的作者不再推送，改为粉丝读取时拉取
+    @Value("${hmdp.feed.push-threshold:5000}")
+    private int feedPushThreshold;
+
+    //排行榜不存在时，从数据库初始化，多个节点同时启动时只由一个节点重建
+    @PostConstruct
+    private void initHotBlogRank() {
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_KEY))) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_BLOG_HOT_KEY);
+        //其他节点正在重建
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            //双重检查，其他节点可能刚刚重建完成
+            if (BooleanUtil.isFalse(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_KEY))) {
+                rebuildHotBlogRank();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //从数据库重建点赞排行榜，先写入本节点的临时key再整体替换
+    private void rebuildHotBlogRank() {
+        String tempKey = RedisConstants.BLOG_HOT_KEY + ":rebuild:" + UUID.randomUUID().toString(true);
+        try {
+            doRebuildHotBlogRank(tempKey);
+        } finally {
+            //重建失败时清理临时key，成功时已被RENAME
+            stringRedisTemplate.delete(tempKey);
+        }
+    }
+
+    private void doRebuildHotBlogRank(String tempKey) {
+        long lastId = 0;
+        boolean hasData = false;
+        while (true) {
+            List<Blog> blogs = query()
+                    .select("id", "liked")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + RedisConstants.BLOG_HOT_REBUILD_BATCH_SIZE)
+                    .list();
+            if (blogs.isEmpty()) {
+                break;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Blog blog : blogs) {
+                    int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+                    conn.zAdd(tempKey, liked, blog.getId().toString());
+                }
+                return null;
+            });
+            hasData = true;
+            lastId = blogs.get(blogs.size() - 1).getId();
+        }
+        if (hasData) {
+            stringRedisTemplate.rename(tempKey, RedisConstants.BLOG_HOT_KEY);
+        }
+    }
+
     @Override
     public Result queryHotBlog(Integer current) {
+        //从排行榜中分页查询blogId和点赞数
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(RedisConstants.BLOG_HOT_KEY, start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        List<Blog> records;
+        if (typedTuples == null || typedTuples.isEmpty()) {
+            //超出排行榜末尾时返回空页，只有排行榜不存在时才降级为查询数据库
+            records = BooleanUtil.isTrue(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_KEY))
+                    ? new ArrayList<>() : queryHotBlogFromDb(current);
+        } else {
+            List<Long> blogIds = new ArrayList<>(typedTuples.size());
+            List<Integer> likes = new ArrayList<>(typedTuples.size());
+            for (ZSetOperations.TypedTuple<String> typedTuple : typedTuples) {
+                blogIds.add(Long.valueOf(typedTuple.getValue()));
+                likes.add(typedTuple.getScore().intValue());
+            }
+            //从缓存批量查询blog
+            List<Blog> blogs = cacheClient.queryBatchWithPenetration(
+                    RedisConstants.CACHE_BLOG_KEY,
+                    blogIds,
+                    Blog.class,
+                    this::listByIds,
+                    Blog::getId,
+                    RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+            records = new ArrayList<>(blogs.size());
+            for (int i = 0; i < blogs.size(); i++) {
+                Blog blog = blogs.get(i);
+                if (blog == null) {
+                    continue;
+                }
+                //点赞数以排行榜为准
+                blog.setLiked(likes.get(i));
+                records.add(blog);
+            }
+        }
+        //批量设置名字头像
+        queryUserToBlogs(records);
+        //批量设置当前blog是否已经点赞
+        isLikedBlogs(records);
+        return Result.ok(records);
+    }
+
+    private List<Blog> queryHotBlogFromDb(Integer current) {
         // 根据用户查询
         Page<Blog> page = query()
                 .orderByDesc("liked")
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            //设置名字头像
-            queryUserToBlog(blog);
-            //设置当前blog是否已经点赞
-            isLikedBlog(blog);
-        });
-        return Result.ok(records);
+        return page.getRecords();
     }
 
     @Override
@@ -73,10 +206,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (blog == null){
             return Result.fail("笔记不存在");
         }
+        List<Blog> blogs = Collections.singletonList(blog);
         //设置名字、头像
-        queryUserToBlog(blog);
+        queryUserToBlogs(blogs);
         //设置查询的blog是否已经点赞
-        isLikedBlog(blog);
+        isLikedBlogs(blogs);
 
         return Result.ok(blog);
     }
@@ -85,35 +219,85 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result likeBlog(Long id) {
         //不需要判断，因为有登录拦截器拦截路径
         Long userId = UserHolder.getUser().getId();
-        //从Redis中查询是否点赞过
-        String key = RedisConstants.BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        //如果未点赞，则点赞
-        if (score == null){
-            //更新数据库中blog的点赞量
-            boolean isSuccess = update()
-                    .setSql("liked = liked + 1")
-                    .eq("id", id).update();
-            //如果更新成功
-            if (isSuccess){
-                //将userId放入到Redis的sortedSet集合中,以时间戳为score
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
-            }
+        //通过缓存判断blog是否存在，排行榜在重建期间可能缺少部分blog
+        Blog blog = cacheClient.queryWithPenetration(
+                RedisConstants.CACHE_BLOG_KEY,
+                id,
+                Blog.class,
+                this::getById,
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (blog == null) {
+            return Result.fail("笔记不存在");
         }
-        //如果已经点赞，则取消点赞
-        else {
-            //更新数据库中blog的点赞量
-            boolean isSuccess = update()
-                    .setSql("liked = liked - 1")
-                    .eq("id", id).update();
-            //如果更新成功
-            if (isSuccess){
-                //从Redis的set集合中移除userId
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
-            }
+        //执行lua脚本，原子地切换点赞状态、更新排行榜并标记待刷新
+        Long result = toggleLike(id, userId);
+        if (result != null && result < 0) {
+            //排行榜中缺少该blog，按数据库中的点赞数补充后重试，已被其他请求补充时不覆盖
+            Blog dbBlog = getById(id);
+            int liked = dbBlog == null || dbBlog.getLiked() == null ? 0 : dbBlog.getLiked();
+            stringRedisTemplate.opsForZSet().addIfAbsent(RedisConstants.BLOG_HOT_KEY, id.toString(), liked);
+            result = toggleLike(id, userId);
         }
+        //返回点赞后的状态
+        return Result.ok(result != null && result == 1);
+    }
 
-        return Result.ok();
+    private Long toggleLike(Long id, Long userId) {
+        return stringRedisTemplate.execute(
+                LIKE_SCRIPT,
+                Arrays.asList(RedisConstants.BLOG_LIKED_KEY + id, RedisConstants.BLOG_HOT_KEY,
+                        RedisConstants.BLOG_LIKED_DIRTY_KEY),
+                id.toString(), userId.toString(), String.valueOf(System.currentTimeMillis()));
+    }
+
+    //将点赞数变化的blog批量刷新到数据库，各节点都会执行，通过分布式锁保证同时只有一个节点刷新
+    //否则一个节点删除flushing集合时，可能删除的是另一个节点刚转移、尚未写入数据库的集合
+    @Scheduled(fixedDelayString = "${hmdp.blog.like-flush-interval:5000}")
+    public void flushBlogLiked() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_BLOG_LIKED_FLUSH_KEY);
+        //其他节点正在刷新，本次跳过
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            doFlushBlogLiked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doFlushBlogLiked() {
+        List<String> ids = stringRedisTemplate.execute(LIKE_FLUSH_SCRIPT,
+                Arrays.asList(RedisConstants.BLOG_LIKED_DIRTY_KEY, RedisConstants.BLOG_LIKED_FLUSHING_KEY));
+        if (ids == null || ids.isEmpty()) {
+            return;
+        }
+        //以排行榜中的点赞数为准写入绝对值，重复刷新结果不变
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String id : ids) {
+                conn.zScore(RedisConstants.BLOG_HOT_KEY, id);
+            }
+            return null;
+        });
+        List<Blog> blogs = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Double score = (Double) scores.get(i);
+            if (score == null) {
+                continue;
+            }
+            Blog blog = new Blog();
+            blog.setId(Long.valueOf(ids.get(i)));
+            blog.setLiked(score.intValue());
+            blogs.add(blog);
+        }
+        for (int i = 0; i < blogs.size(); i += RedisConstants.BLOG_LIKED_FLUSH_BATCH_SIZE) {
+            getBaseMapper().updateLikedBatch(
+                    blogs.subList(i, Math.min(i + RedisConstants.BLOG_LIKED_FLUSH_BATCH_SIZE, blogs.size())));
+        }
+        //全部写入成功后才删除，失败时下次继续刷新
+        stringRedisTemplate.delete(RedisConstants.BLOG_LIKED_FLUSHING_KEY);
+        log.debug("刷新点赞数，数量：{}", blogs.size());
     }
 
     @Override
@@ -154,29 +338,90 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增图书失败");
         }
-        //查询到所有粉丝
-        List<Follow> followList = followService.query().eq("follow_user_id", userId).list();
-        //遍历将blog的id放入到粉丝的Redis的sortedset集合中
-        for (Follow follow : followList) {
-            Long id = follow.getUserId();
-            stringRedisTemplate.opsForZSet()
-                    .add(RedisConstants.FEED_KEY + id,
-                            blog.getId().toString(),
-                            System.currentTimeMillis());
+        //加入点赞排行榜
+        stringRedisTemplate.opsForZSet().add(RedisConstants.BLOG_HOT_KEY, blog.getId().toString(), 0);
+        long timestamp = System.currentTimeMillis();
+        String jobKey = RedisConstants.FEED_JOB_KEY + blog.getId();
+        Map<String, String> job = new HashMap<>(3);
+        //粉丝数超过阈值的作者只写自己的发件箱，由粉丝读取时拉取
+        Integer followerCount = followService.query().eq("follow_user_id", userId).count();
+        if (followerCount >= feedPushThreshold) {
+            String outboxKey = RedisConstants.FEED_OUTBOX_KEY + userId;
+            stringRedisTemplate.opsForZSet().add(outboxKey, blog.getId().toString(), timestamp);
+            stringRedisTemplate.opsForZSet().removeRange(outboxKey, 0, -RedisConstants.FEED_MAX_SIZE - 1);
+            stringRedisTemplate.opsForSet().add(RedisConstants.FEED_BIG_AUTHOR_KEY, userId.toString());
+            job.put("mode", "PULL");
+            job.put("status", "DONE");
+            job.put("pushed", "0");
+            stringRedisTemplate.opsForHash().putAll(jobKey, job);
+            stringRedisTemplate.expire(jobKey, RedisConstants.FEED_JOB_TTL, TimeUnit.DAYS);
+            return Result.ok(blog.getId());
         }
+        //记录推送任务状态，异步将blog的id推送到粉丝的收件箱
+        job.put("mode", "PUSH");
+        job.put("status", "RUNNING");
+        job.put("pushed", "0");
+        stringRedisTemplate.opsForHash().putAll(jobKey, job);
+        stringRedisTemplate.expire(jobKey, RedisConstants.FEED_JOB_TTL, TimeUnit.DAYS);
+        feedPushExecutor.submit(blog.getId(), () -> pushBlogToFollowers(userId, blog.getId(), timestamp));
 
         return Result.ok(blog.getId());
     }
 
+    @Override
+    public Result queryFeedJob(Long blogId) {
+        Map<Object, Object> job = stringRedisTemplate.opsForHash().entries(RedisConstants.FEED_JOB_KEY + blogId);
+        if (job.isEmpty()) {
+            return Result.fail("推送任务不存在");
+        }
+        return Result.ok(job);
+    }
+
+    //分页查询粉丝，通过管道批量推送到粉丝的收件箱
+    private void pushBlogToFollowers(Long userId, Long blogId, long timestamp) {
+        String jobKey = RedisConstants.FEED_JOB_KEY + blogId;
+        try {
+            long lastId = 0;
+            while (true) {
+                //按主键分页，避免深分页
+                List<Follow> followList = followService.query()
+                        .select("id", "user_id")
+                        .eq("follow_user_id", userId)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + RedisConstants.FEED_PUSH_BATCH_SIZE)
+                        .list();
+                if (followList.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (Follow follow : followList) {
+                        String key = RedisConstants.FEED_KEY + follow.getUserId();
+                        conn.zAdd(key, timestamp, blogId.toString());
+                        //只保留最新的FEED_MAX_SIZE条
+                        conn.zRemRange(key, 0, -RedisConstants.FEED_MAX_SIZE - 1);
+                    }
+                    conn.hIncrBy(jobKey, "pushed", followList.size());
+                    return null;
+                });
+                if (followList.size() < RedisConstants.FEED_PUSH_BATCH_SIZE) {
+                    break;
+                }
+                lastId = followList.get(followList.size() - 1).getId();
+            }
+            stringRedisTemplate.opsForHash().put(jobKey, "status", "DONE");
+        } catch (Exception e) {
+            log.error("推送笔记失败，blogId：{}", blogId, e);
+            stringRedisTemplate.opsForHash().put(jobKey, "status", "FAILED");
+        }
+    }
+
     @Override
     public Result queryBlogOfFollow(Integer offset, Long maxTime) {
         Long userId = UserHolder.getUser().getId();
-        //获取滚动分页数据
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(
-                        RedisConstants.FEED_KEY + userId,
-                        0, maxTime,
-                        offset, 3);
+        //获取滚动分页数据，合并收件箱和关注的大V发件箱
+        List<ZSetOperations.TypedTuple<String>> typedTuples = queryFeedPage(userId, offset, maxTime, 3);
 
         //判断是否为null或者为空，则返回空列表
         if (typedTuples == null || typedTuples.isEmpty()) {
@@ -206,10 +451,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .last("ORDER BY FIELD(id," + join + ")").list();
 
         //添加是否已点赞，以及名字、头像
-        for (Blog blog : blogList) {
-            queryUserToBlog(blog);
-            isLikedBlog(blog);
-        }
+        queryUserToBlogs(blogList);
+        isLikedBlogs(blogList);
 
         //封装数据，返回
         ScoreResult scoreResult = new ScoreResult();
@@ -221,25 +464,84 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     }
 
-    private void isLikedBlog(Blog blog) {
+    private List<ZSetOperations.TypedTuple<String>> queryFeedPage(Long userId, int offset, long maxTime, int count) {
+        String inboxKey = RedisConstants.FEED_KEY + userId;
+        //关注的大V
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet()
+                .intersect(RedisConstants.FOLLOW_KEY + userId, RedisConstants.FEED_BIG_AUTHOR_KEY);
+        //没有关注大V，只读收件箱
+        if (bigAuthors == null || bigAuthors.isEmpty()) {
+            Set<ZSetOperations.TypedTuple<String>> inbox = stringRedisTemplate.opsForZSet()
+                    .reverseRangeByScoreWithScores(inboxKey, 0, maxTime, offset, count);
+            return inbox == null ? Collections.emptyList() : new ArrayList<>(inbox);
+        }
+        //通过管道一次读取收件箱和所有大V发件箱的前offset+count条
+        List<String> keys = new ArrayList<>(bigAuthors.size() + 1);
+        keys.add(inboxKey);
+        bigAuthors.forEach(authorId -> keys.add(RedisConstants.FEED_OUTBOX_KEY + authorId));
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                conn.zRevRangeByScoreWithScores(key, 0, maxTime, 0, offset + count);
+            }
+            return null;
+        });
+        //多路归并，同一篇blog只保留一次
+        Map<String, Double> merged = new HashMap<>();
+        for (Object result : results) {
+            for (ZSetOperations.TypedTuple<String> tuple : (Set<ZSetOperations.TypedTuple<String>>) result) {
+                merged.merge(tuple.getValue(), tuple.getScore(), Math::max);
+            }
+        }
+        //与ZREVRANGEBYSCORE顺序一致：分数倒序，分数相同时按成员倒序
+        return merged.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue()
+                        .thenComparing(Map.Entry.comparingByKey())
+                        .reversed())
+                .skip(offset)
+                .limit(count)
+                .map(entry -> new DefaultTypedTuple<>(entry.getKey(), entry.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    //通过管道一次查询当前用户是否点赞过每个blog
+    private void isLikedBlogs(List<Blog> blogs) {
         UserDTO user = UserHolder.getUser();
         //需要判断，没有登录拦截器拦截路径
-        if (user == null){
+        if (user == null || blogs.isEmpty()){
             return;
         }
-        Long userId = user.getId();
+        String userId = user.getId().toString();
 
         //从Redis中查询是否点赞过
-        String key = RedisConstants.BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(RedisConstants.BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
     }
 
-
-    private void queryUserToBlog(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    //一次查询所有作者，设置名字、头像
+    private void queryUserToBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, User> users = userService.listByIds(userIds)
+                .stream()
+                .collect(Collectors.toMap(User::getId, user -> user));
+        for (Blog blog : blogs) {
+            User user = users.get(blog.getUserId());
+            if (user == null) {
+                continue;
+            }
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
     }
 }
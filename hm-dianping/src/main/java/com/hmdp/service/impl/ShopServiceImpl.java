@@ -1,6 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -10,6 +10,7 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.*;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -17,8 +18,10 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,9 +38,35 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    //是否使用布隆过滤器拦截不存在的商铺id
+    @Value("${hmdp.cache.shop-bloom-filter:true}")
+    private boolean shopBloomFilter;
+    @Value("${hmdp.cache.shop-bloom-expected-insertions:100000}")
+    private long shopBloomExpectedInsertions;
+    //每多少次查询抽样记录一次访问，作为缓存预热的热点来源，小于等于0不记录
+    //只有开启预热时才需要统计访问次数
+    @Value("${hmdp.cache.warm-up.enabled:false}")
+    private boolean warmUpEnabled;
+    @Value("${hmdp.cache.warm-up.sample-rate:100}")
+    private int accessSampleRate;
+    @Value("${hmdp.cache.warm-up.batch-size:100}")
+    private int warmUpBatchSize;
+
+    @PostConstruct
+    private void initShopBloomFilter() {
+        if (!shopBloomFilter) {
+            return;
+        }
+        cacheClient.initBloomFilter(RedisConstants.CACHE_SHOP_KEY, shopBloomExpectedInsertions,
+                () -> listObjs(new QueryWrapper<Shop>().select("id"), o -> Long.valueOf(o.toString())));
+    }
 
     @Override
     public Result queryById(Long id) {
+        //抽样记录访问次数
+        if (warmUpEnabled && accessSampleRate > 0 && ThreadLocalRandom.current().nextInt(accessSampleRate) == 0) {
+            stringRedisTemplate.opsForZSet().incrementScore(RedisConstants.CACHE_SHOP_ACCESS_KEY, id.toString(), 1);
+        }
         //缓存穿透
         Shop shop = cacheClient.queryWithPenetration(
                 RedisConstants.CACHE_SHOP_KEY,
@@ -54,9 +83,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                 this::getById,
                 30L, TimeUnit.SECONDS);*/
 
-        /*//缓存击穿利用逻辑过期时间
+        /*//缓存击穿利用逻辑过期时间，数据由缓存预热写入
         Shop shop = cacheClient.queryWithBreakdownByExpireTime(
-                RedisConstants.CACHE_SHOP_KEY,
+                RedisConstants.CACHE_SHOP_LOGICAL_KEY,
                 id,
                 Shop.class,
                 this::getById,
@@ -233,6 +262,37 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(key);
     }*/
 
+    //分批查询数据库，通过管道写入逻辑过期数据，返回预热的商铺数量
+    //写入单独的key前缀，不会覆盖缓存穿透方案读取的商铺数据
+    @Override
+    public int warmUpShopCache(Collection<Long> ids) {
+        List<Long> idList = new ArrayList<>(ids);
+        int count = 0;
+        for (int i = 0; i < idList.size(); i += warmUpBatchSize) {
+            List<Long> batch = idList.subList(i, Math.min(i + warmUpBatchSize, idList.size()));
+            long begin = System.currentTimeMillis();
+            List<Shop> shops = listByIds(batch);
+            //按单个商铺的平均加载耗时记录，用于提前刷新
+            long delta = (System.currentTimeMillis() - begin) / Math.max(shops.size(), 1);
+            cacheClient.setBatchWithExpire(RedisConstants.CACHE_SHOP_LOGICAL_KEY, shops, Shop::getId,
+                    RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, delta);
+            count += shops.size();
+        }
+        return count;
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        //保存数据
+        save(shop);
+        Long id = shop.getId();
+        //加入布隆过滤器，并清除之前可能写入的空值
+        cacheClient.addToBloomFilter(RedisConstants.CACHE_SHOP_KEY, id);
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        //返回店铺id
+        return Result.ok(id);
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -244,8 +304,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //更新数据库
         updateById(shop);
-        //删除缓存，下次用再取
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        //删除缓存，下次用再取，同时通知各节点清除本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         //返回成功信息
         return Result.ok();
     }
@@ -295,14 +355,23 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             distances.add(distance);
         });
 
-        String join = StrUtil.join(",", shopIds);
-        //根据shopId，获得按照顺序的shopList列表
-        List<Shop> shopList = query()
-                .in("id", shopIds)
-                .last("ORDER BY FIELD(id," + join + ")").list();
-        //将距离放入shop中
-        for (int i = 0; i < shopList.size(); i++) {
-            shopList.get(i).setDistance(distances.get(i));
+        //根据shopId批量查询缓存，获得按照顺序的shop列表
+        List<Shop> shops = cacheClient.queryBatchWithPenetration(
+                RedisConstants.CACHE_SHOP_KEY,
+                shopIds,
+                Shop.class,
+                this::listByIds,
+                Shop::getId,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //将距离放入shop中，跳过已不存在的商铺
+        List<Shop> shopList = new ArrayList<>(shops.size());
+        for (int i = 0; i < shops.size(); i++) {
+            Shop shop = shops.get(i);
+            if (shop == null) {
+                continue;
+            }
+            shop.setDistance(distances.get(i));
+            shopList.add(shop);
         }
 
         return Result.ok(shopList);
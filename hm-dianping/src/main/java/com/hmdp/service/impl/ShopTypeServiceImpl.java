@@ -1,11 +1,26 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeList;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 /**
  * <p>
  *  服务实现类
@@ -14,7 +29,68 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    //本地缓存的商铺类型列表，启动时预加载，修改后整体替换
+    private volatile ShopTypeList shopTypeList;
+
+    @PostConstruct
+    private void init() {
+        loadShopTypes();
+        //其他节点修改了商铺类型，从Redis重新加载
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String version = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (!version.equals(shopTypeList.getVersion())) {
+                loadShopTypes();
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_SHOP_TYPE_CHANNEL));
+    }
+
+    @Override
+    public ShopTypeList queryTypeList() {
+        return shopTypeList;
+    }
+
+    @Override
+    public Result saveShopType(ShopType shopType) {
+        save(shopType);
+        refreshShopTypes();
+        return Result.ok(shopType.getId());
+    }
+
+    @Override
+    public Result updateShopType(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("商铺类型id不能为空");
+        }
+        updateById(shopType);
+        refreshShopTypes();
+        return Result.ok();
+    }
+
+    //优先从Redis加载，Redis中不存在时查询数据库并写入Redis
+    private void loadShopTypes() {
+        String json = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_TYPE_KEY);
+        if (StrUtil.isBlank(json)) {
+            refreshShopTypes();
+            return;
+        }
+        shopTypeList = new ShopTypeList(DigestUtil.md5Hex(json), JSONUtil.toList(json, ShopType.class));
+    }
 
+    //从数据库重新加载，写入Redis并通知所有节点
+    private void refreshShopTypes() {
+        List<ShopType> types = query().orderByAsc("sort").list();
+        String json = JSONUtil.toJsonStr(types);
+        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_TYPE_KEY, json);
+        shopTypeList = new ShopTypeList(DigestUtil.md5Hex(json), types);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_SHOP_TYPE_CHANNEL, shopTypeList.getVersion());
+        log.debug("刷新商铺类型，版本：{}", shopTypeList.getVersion());
+    }
 }
@@ -1,18 +1,27 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillVoucherCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -21,15 +30,18 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -51,45 +63,156 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //全局唯一ID
     @Resource
     private RedisIdWorker redisIdWorker;
+    //本地售罄标记
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+    //秒杀券时间和状态缓存
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
     //redisson分布式锁
     @Resource
     private RedissonClient redissonClient;
-    //代理对象
+    //代理对象，延迟注入，保证消费线程启动时即可使用事务
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
+    //每次读取的最大订单数
+    @Value("${hmdp.order.batch-size:50}")
+    private int batchSize;
+    //读取订单的最大阻塞时间，毫秒
+    @Value("${hmdp.order.batch-wait:2000}")
+    private long batchWait;
+    //每个节点的消费线程数
+    @Value("${hmdp.order.workers:4}")
+    private int workers;
+    //pending消息空闲超过该时间则被重新认领，毫秒
+    @Value("${hmdp.order.claim-idle:60000}")
+    private long claimIdle;
+    //认领pending消息的检查间隔，毫秒
+    @Value("${hmdp.order.claim-interval:30000}")
+    private long claimInterval;
+    //分片订单stream没有订单时的轮询间隔，毫秒
+    @Value("${hmdp.order.shard-poll-interval:100}")
+    private long shardPollInterval;
+
+    private static final String QUEUE_NAME = "stream.orders";
+    private static final String GROUP_NAME = "g1";
+    //消费者名称前缀，按节点区分：c-主机名-进程号
+    private static final String CONSUMER_PREFIX = "c-" + NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
 
     //初始化lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> STOCK_TAKE_SCRIPT;
+    private static final DefaultRedisScript<List> AUTOCLAIM_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         //设置脚本位置
         SECKILL_SCRIPT.setLocation(new ClassPathResource("lua/seckillStream.lua"));
         //设置返回值类型
         SECKILL_SCRIPT.setResultType(Long.class);
+
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("lua/seckillShard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+
+        STOCK_TAKE_SCRIPT = new DefaultRedisScript<>();
+        STOCK_TAKE_SCRIPT.setLocation(new ClassPathResource("lua/stockTake.lua"));
+        STOCK_TAKE_SCRIPT.setResultType(Long.class);
+
+        AUTOCLAIM_SCRIPT = new DefaultRedisScript<>();
+        AUTOCLAIM_SCRIPT.setLocation(new ClassPathResource("lua/autoclaim.lua"));
+        AUTOCLAIM_SCRIPT.setResultType(List.class);
     }
 
-    //初始化单线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //消费线程池，每个线程是一个独立的消费者
+    private ExecutorService seckillOrderExecutor;
+    //分片订单stream的消费线程池
+    private ExecutorService shardOrderExecutor;
+    //已登记的分片订单stream，定期从Redis刷新
+    private volatile List<String> shardStreams = Collections.emptyList();
+    //本节点已创建过消费者组的stream
+    private final Set<String> groupCreated = ConcurrentHashMap.newKeySet();
+    //认领pending消息的定时线程
+    private ScheduledExecutorService pendingClaimExecutor;
+    private volatile boolean running = true;
 
     //在spring容器初始化的时候执行该方法
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        createGroupIfAbsent(QUEUE_NAME);
+        refreshShardStreams();
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers);
+        shardOrderExecutor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(CONSUMER_PREFIX + "-" + i));
+            shardOrderExecutor.submit(new ShardOrderHandler(CONSUMER_PREFIX + "-" + i));
+        }
+        pendingClaimExecutor = Executors.newSingleThreadScheduledExecutor();
+        pendingClaimExecutor.scheduleWithFixedDelay(this::claimPendingOrders,
+                claimInterval, claimInterval, TimeUnit.MILLISECONDS);
+        pendingClaimExecutor.scheduleWithFixedDelay(this::refreshShardStreams,
+                1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        pendingClaimExecutor.shutdownNow();
+        seckillOrderExecutor.shutdownNow();
+        shardOrderExecutor.shutdownNow();
+    }
+
+    //创建消费者组，stream不存在时一并创建
+    private void createGroupIfAbsent(String stream) {
+        if (groupCreated.contains(stream)) {
+            return;
+        }
+        try {
+            //XGROUP CREATE stream.orders g1 0 MKSTREAM
+            stringRedisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"), GROUP_NAME);
+        } catch (RuntimeException e) {
+            //只忽略BUSYGROUP，消费者组已存在；连接异常等继续抛出，下次重试
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                throw e;
+            }
+            log.debug("消费者组已存在：{}", stream);
+        }
+        groupCreated.add(stream);
+    }
+
+    //读取已登记的分片订单stream，新的stream先创建消费者组，从头开始消费，不会遗漏创建前写入的订单
+    private void refreshShardStreams() {
+        try {
+            Set<String> streams = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_ORDER_STREAMS_KEY);
+            if (streams == null) {
+                return;
+            }
+            streams.forEach(this::createGroupIfAbsent);
+            shardStreams = new ArrayList<>(streams);
+        } catch (Exception e) {
+            log.error("刷新分片订单stream异常", e);
+        }
     }
 
     private class VoucherOrderHandler implements Runnable {
 
-        private final String queueName = "stream.orders";
+        private final String consumerName;
+
+        private VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
 
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    //获取消息队列中的订单信息，没有订单则阻塞等待2秒
-                    //XREADGROUP GROUP c1 COUNT 1 BLOCK 2000 STREAMS streams.order >
+                    //批量获取消息队列中的订单信息，没有订单则阻塞等待batchWait毫秒
+                    //XREADGROUP GROUP g1 consumerName COUNT batchSize BLOCK batchWait STREAMS streams.order >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(batchWait)),
+                            StreamOffset.create(QUEUE_NAME, ReadOffset.lastConsumed())
                     );
                     //判断消息是否获取成功
                     if (list == null || list.isEmpty()) {
@@ -97,54 +220,175 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         continue;
                     }
                     //解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+                    List<String> recordIds = new ArrayList<>(list.size());
+                    List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+                    for (MapRecord<String, Object, Object> record : list) {
+                        recordIds.add(record.getId().getValue());
+                        voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                    }
                     //获取成功，则处理订单
-                    handleVoucherOrder(voucherOrder);
-                    //完成ACK确认
-                    //SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    handleVoucherOrders(QUEUE_NAME, recordIds, voucherOrders);
                 } catch (Exception e) {
+                    //未确认的消息留在pending-list中，由认领任务重新处理
                     log.error("处理订单异常", e);
-                    handlePendingList();
                 }
-
             }
         }
-        //pending-list检查
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    //获取pending-list中的订单信息
-                    //XREADGROUP GROUP c1 COUNT 1 STREAMS streams.order 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    //判断消息是否获取成功
-                    if (list == null || list.isEmpty()) {
-                        //获取失败，pending-list中没有异常消息，结束循环
-                        break;
+    }
+
+    //依次读取各分片的订单stream，分片可能位于不同的节点，不能在一条命令中读取多个stream
+    private class ShardOrderHandler implements Runnable {
+
+        private final String consumerName;
+
+        private ShardOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                boolean idle = true;
+                for (String stream : shardStreams) {
+                    try {
+                        //XREADGROUP GROUP g1 consumerName COUNT batchSize STREAMS stream >
+                        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                                Consumer.from(GROUP_NAME, consumerName),
+                                StreamReadOptions.empty().count(batchSize),
+                                StreamOffset.create(stream, ReadOffset.lastConsumed())
+                        );
+                        if (list == null || list.isEmpty()) {
+                            continue;
+                        }
+                        idle = false;
+                        List<String> recordIds = new ArrayList<>(list.size());
+                        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+                        for (MapRecord<String, Object, Object> record : list) {
+                            recordIds.add(record.getId().getValue());
+                            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                        }
+                        handleVoucherOrders(stream, recordIds, voucherOrders);
+                    } catch (Exception e) {
+                        log.error("处理分片订单异常：{}", stream, e);
                     }
-                    //解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //获取成功，处理异常的订单
-                    handleVoucherOrder(voucherOrder);
-                    //完成ACK确认
-                    //SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending-list订单异常", e);
+                }
+                //所有分片都没有订单，等待一段时间再读取
+                if (idle) {
                     try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                        Thread.sleep(shardPollInterval);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    //认领所有订单stream中空闲超时的pending消息
+    private void claimPendingOrders() {
+        claimPendingOrders(QUEUE_NAME);
+        for (String stream : shardStreams) {
+            if (!running) {
+                return;
+            }
+            claimPendingOrders(stream);
+            retireShardStreamIfDone(stream);
+        }
+    }
+
+    //秒杀结束一段时间后，分片stream中的订单都已读取并确认，不再登记该stream，消费线程不再轮询
+    private void retireShardStreamIfDone(String stream) {
+        try {
+            Long voucherId = Long.valueOf(StrUtil.subBetween(stream, "{", ":"));
+            Long endTime = seckillVoucherCache.get(voucherId).getEndTime();
+            //没有结束时间，或者结束后可能仍有刚通过校验的请求在写入
+            if (endTime == null || System.currentTimeMillis()
+                    < endTime + TimeUnit.SECONDS.toMillis(RedisConstants.SECKILL_ORDER_STREAM_RETIRE_DELAY)) {
+                return;
+            }
+            //XINFO STREAM和XINFO GROUPS，最后投递的id等于最后写入的id，且没有pending消息
+            String lastId = stringRedisTemplate.opsForStream().info(stream).lastGeneratedId();
+            StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(stream).stream()
+                    .filter(g -> GROUP_NAME.equals(g.groupName()))
+                    .findFirst().orElse(null);
+            if (group == null || group.pendingCount() > 0 || !lastId.equals(group.lastDeliveredId())) {
+                return;
+            }
+            stringRedisTemplate.opsForSet().remove(RedisConstants.SECKILL_ORDER_STREAMS_KEY, stream);
+            log.info("分片订单stream已处理完成：{}", stream);
+        } catch (Exception e) {
+            log.error("检查分片订单stream异常：{}", stream, e);
+        }
+    }
+
+    //认领空闲超时的pending消息，包括已下线消费者遗留的消息
+    private void claimPendingOrders(String stream) {
+        String consumerName = CONSUMER_PREFIX + "-claimer";
+        String startId = "0-0";
+        try {
+            do {
+                List<Object> reply = stringRedisTemplate.execute(
+                        AUTOCLAIM_SCRIPT,
+                        Collections.singletonList(stream),
+                        GROUP_NAME, consumerName,
+                        String.valueOf(claimIdle), startId, String.valueOf(batchSize));
+                if (reply == null || reply.size() < 2) {
+                    return;
+                }
+                startId = (String) reply.get(0);
+                List<Object> entries = (List<Object>) reply.get(1);
+                if (entries == null || entries.isEmpty()) {
+                    return;
+                }
+                //解析消息中的订单信息
+                List<String> recordIds = new ArrayList<>(entries.size());
+                List<VoucherOrder> voucherOrders = new ArrayList<>(entries.size());
+                for (Object entry : entries) {
+                    List<Object> record = (List<Object>) entry;
+                    String recordId = (String) record.get(0);
+                    List<Object> fields = (List<Object>) record.get(1);
+                    //消息已从stream中删除，直接确认
+                    if (fields == null) {
+                        stringRedisTemplate.opsForStream().acknowledge(stream, GROUP_NAME, recordId);
+                        continue;
                     }
+                    Map<Object, Object> value = new HashMap<>(fields.size());
+                    for (int i = 0; i + 1 < fields.size(); i += 2) {
+                        value.put(fields.get(i), fields.get(i + 1));
+                    }
+                    recordIds.add(recordId);
+                    voucherOrders.add(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+                }
+                if (!voucherOrders.isEmpty()) {
+                    log.info("认领pending订单{}条：{}", voucherOrders.size(), stream);
+                    handleVoucherOrders(stream, recordIds, voucherOrders);
                 }
+            } while (running && !"0-0".equals(startId));
+        } catch (Exception e) {
+            log.error("认领pending订单异常：{}", stream, e);
+        }
+    }
+
+    //批量处理订单，整批失败时逐条处理，避免单条异常订单或库存不足导致整批失败
+    private void handleVoucherOrders(String stream, List<String> recordIds, List<VoucherOrder> voucherOrders) {
+        try {
+            //在一个事务中批量处理订单
+            proxy.createVoucherOrders(voucherOrders);
+            //一次完成所有消息的ACK确认
+            //XACK stream.orders g1 id1 id2 ...
+            stringRedisTemplate.opsForStream().acknowledge(stream, GROUP_NAME, recordIds.toArray(new String[0]));
+            return;
+        } catch (Exception e) {
+            log.error("批量处理订单异常，改为逐条处理", e);
+        }
+        for (int i = 0; i < voucherOrders.size(); i++) {
+            try {
+                handleVoucherOrder(voucherOrders.get(i));
+                stringRedisTemplate.opsForStream().acknowledge(stream, GROUP_NAME, recordIds.get(i));
+            } catch (Exception e) {
+                //不确认，留在pending-list中等待重新认领
+                log.error("处理pending-list订单异常", e);
             }
         }
     }
@@ -173,26 +417,80 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //主方法
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //已售罄，直接返回，不再访问Redis
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //判断时间和状态
+        SeckillVoucherCache.VoucherMeta meta = seckillVoucherCache.get(voucherId);
+        String error = meta.check(System.currentTimeMillis());
+        if (error != null) {
+            return Result.fail(error);
+        }
         Long userId = UserHolder.getUser().getId();
         long orderId = redisIdWorker.nextId("order");
 
         //执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        Long result;
+        //是否从其他分片迁移过库存，迁移后仍不足时不能确定已售罄
+        boolean moved = false;
+        int shardCount = meta.shardCount();
+        if (shardCount > 1) {
+            //根据userId路由到库存分片
+            int shard = Math.floorMod(userId.hashCode(), shardCount);
+            result = seckillShard(voucherId, userId, orderId, shard);
+            //当前分片库存不足，从其他分片迁移库存后重试一次
+            if (result == 1 && moveStock(voucherId, shard, shardCount)) {
+                moved = true;
+                result = seckillShard(voucherId, userId, orderId, shard);
+            }
+        } else {
+            result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        }
 
+        //库存不足，标记售罄
+        if (result == 1 && !moved){
+            seckillSoldOutCache.markSoldOut(voucherId);
+        }
         //异常信息，返回失败
         if (result != 0){
             return Result.fail(result == 1 ? "库存不足" : "不能重复下单");
         }
 
-        //获取主线程代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
         return Result.ok(orderId);
     }
 
+    //在用户所在的分片上扣减库存并发送订单，脚本只访问该分片的key
+    private Long seckillShard(Long voucherId, Long userId, long orderId, int shard) {
+        return stringRedisTemplate.execute(
+                SECKILL_SHARD_SCRIPT,
+                Arrays.asList(
+                        RedisConstants.seckillShardKey(RedisConstants.SECKILL_STOCK_KEY, voucherId, shard),
+                        RedisConstants.seckillShardKey(RedisConstants.SECKILL_ORDER_KEY, voucherId, shard),
+                        RedisConstants.seckillShardKey(RedisConstants.SECKILL_ORDER_STREAM_KEY, voucherId, shard)),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId));
+    }
+
+    //从其他分片取出一半剩余库存加到当前分片，两个分片可能位于不同的slot，分两步执行
+    //取出后、加入前节点宕机只会少卖，不会超卖
+    private boolean moveStock(Long voucherId, int shard, int shardCount) {
+        for (int i = 1; i < shardCount; i++) {
+            int other = (shard + i) % shardCount;
+            Long moved = stringRedisTemplate.execute(
+                    STOCK_TAKE_SCRIPT,
+                    Collections.singletonList(RedisConstants.seckillShardKey(RedisConstants.SECKILL_STOCK_KEY, voucherId, other)));
+            if (moved != null && moved > 0) {
+                stringRedisTemplate.opsForValue().increment(
+                        RedisConstants.seckillShardKey(RedisConstants.SECKILL_STOCK_KEY, voucherId, shard), moved);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*@Override
     public Result seckillVoucher(Long voucherId) {
         //执行lua脚本
@@ -227,9 +525,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         RLock isLock = redissonClient.getLock("lock:order:" + userId);
         //尝试获取锁
         boolean flag = isLock.tryLock();
+        //同一用户的其他订单正在处理，抛出异常不确认消息，留在pending-list中等待重新认领
         if (!flag){
-            log.error("不能重复下单");
-            return;
+            throw new IllegalStateException("用户订单正在处理：" + userId);
         }
         //获取锁成功
         try {
@@ -268,6 +566,52 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         save(voucherOrder);
     }
 
+    //批量操作数据库，按优惠券分组，每组只扣减一次库存，所有订单一次插入
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> ordersByVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> validOrders = new ArrayList<>(voucherOrders.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            //检查一人一单，查询本批用户中已经下过单的
+            Set<Long> userIds = orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+            Set<Long> boughtUserIds = query().select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .in("user_id", userIds).list()
+                    .stream()
+                    .map(VoucherOrder::getUserId)
+                    .collect(Collectors.toSet());
+            //同一批次中同一用户也只保留一单
+            List<VoucherOrder> toCreate = orders.stream()
+                    .filter(order -> boughtUserIds.add(order.getUserId()))
+                    .collect(Collectors.toList());
+            if (toCreate.isEmpty()){
+                log.error("用户已经购买过一次");
+                continue;
+            }
+            //减扣库存，每个优惠券只执行一次
+            //set stock = stock - n where voucher_id = ? and stock >= n
+            int count = toCreate.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            //整组扣减失败时剩余库存可能仍够部分订单，抛出异常回滚整批，由调用方逐条处理
+            if (!success){
+                throw new IllegalStateException("批量扣减库存失败：" + voucherId + "，数量：" + count);
+            }
+            validOrders.addAll(toCreate);
+        }
+        //多行插入生成订单
+        if (!validOrders.isEmpty()){
+            getBaseMapper().insertBatch(validOrders);
+        }
+    }
+
     /*@Override
     public Result seckillVoucher(Long voucherId) {
         //查询优惠券
@@ -8,6 +8,11 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillVoucherCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -32,6 +37,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+    //秒杀库存分片数量，大于1时将库存拆分到多个key
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -53,8 +67,61 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存秒杀库存到Redis
-        stringRedisTemplate.opsForValue()
-                .set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),
-                        voucher.getStock().toString());
+        int shardCount = Math.max(stockShards, 1);
+        if (shardCount > 1) {
+            addStockShards(voucher.getId(), voucher.getStock(), shardCount);
+            //登记各分片的订单stream，由消费线程读取
+            String[] streams = new String[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                streams[i] = RedisConstants.seckillShardKey(RedisConstants.SECKILL_ORDER_STREAM_KEY, voucher.getId(), i);
+            }
+            stringRedisTemplate.opsForSet().add(RedisConstants.SECKILL_ORDER_STREAMS_KEY, streams);
+        } else {
+            stringRedisTemplate.opsForValue()
+                    .set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),
+                            voucher.getStock().toString());
+        }
+        //预热秒杀时间、状态和分片数量，秒杀请求在内存中校验和路由
+        seckillVoucherCache.save(voucher, shardCount);
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        //更新数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        //更新Redis库存
+        int shardCount = seckillVoucherCache.get(voucherId).shardCount();
+        if (shardCount > 1) {
+            addStockShards(voucherId, count, shardCount);
+        } else {
+            stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, count);
+        }
+        //清除各节点的售罄标记
+        seckillSoldOutCache.clear(voucherId);
+        return Result.ok();
+    }
+
+    //将库存平均增加到各个分片，余数分配给前面的分片
+    private void addStockShards(Long voucherId, int stock, int shardCount) {
+        int base = stock / shardCount;
+        int remainder = stock % shardCount;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < shardCount; i++) {
+                int shardStock = base + (i < remainder ? 1 : 0);
+                conn.incrBy(RedisConstants.seckillShardKey(RedisConstants.SECKILL_STOCK_KEY, voucherId, i), shardStock);
+            }
+            return null;
+        });
     }
 }
@@ -0,0 +1,243 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 紧凑的二进制编码，格式为：魔数 + 版本 + 标志位 + 数据
+ * 数据按字段名排序依次写入，每个对象前写入字段结构的hash，实体类字段变化后旧数据解码为null
+ * 支持String、Long、Integer、Double、Boolean、LocalDateTime字段，Object字段按调用方指定的类型嵌套编码
+ */
+@Slf4j
+public class BinaryCacheCodec implements CacheCodec {
+    //二进制数据的头部，JSON数据不会以该字节开头
+    private static final byte MAGIC = (byte) 0xB7;
+    private static final byte VERSION = 1;
+    private static final byte FLAG_DEFLATE = 1;
+    //每个类的字段结构，只需反射一次
+    private static final Map<Class<?>, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+    //数据超过该字节数时压缩，小于等于0不压缩
+    private final int compressThreshold;
+    //不支持二进制编码的类型使用JSON
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schemaOf(value.getClass());
+        if (schema == null) {
+            return jsonCodec.encode(value);
+        }
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+            writeObject(new DataOutputStream(body), value, schema);
+            byte flags = 0;
+            byte[] data = body.toByteArray();
+            if (compressThreshold > 0 && data.length > compressThreshold) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+                try (DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+                    out.write(data);
+                }
+                data = compressed.toByteArray();
+                flags |= FLAG_DEFLATE;
+            }
+            byte[] bytes = new byte[data.length + 3];
+            bytes[0] = MAGIC;
+            bytes[1] = VERSION;
+            bytes[2] = flags;
+            System.arraycopy(data, 0, bytes, 3, data.length);
+            return bytes;
+        } catch (IOException | IllegalStateException e) {
+            //嵌套了不支持的类型，使用JSON
+            log.debug("二进制编码失败，使用JSON：{}", value.getClass().getName(), e);
+            return jsonCodec.encode(value);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (!isBinary(bytes)) {
+            return jsonCodec.decode(bytes, type);
+        }
+        return type.cast(read(bytes, type, null));
+    }
+
+    @Override
+    public <T> RedisData decodeRedisData(byte[] bytes, Class<T> dataType) {
+        if (!isBinary(bytes)) {
+            return jsonCodec.decodeRedisData(bytes, dataType);
+        }
+        return (RedisData) read(bytes, RedisData.class, dataType);
+    }
+
+    private Object read(byte[] bytes, Class<?> type, Class<?> nestedType) {
+        //头部不完整或者版本未知
+        if (bytes.length < 3 || bytes[1] != VERSION) {
+            return null;
+        }
+        InputStream body = new ByteArrayInputStream(bytes, 3, bytes.length - 3);
+        if ((bytes[2] & FLAG_DEFLATE) != 0) {
+            body = new InflaterInputStream(body);
+        }
+        try (DataInputStream in = new DataInputStream(body)) {
+            return readObject(in, type, nestedType);
+        } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            log.warn("缓存解码失败：{}", type.getName(), e);
+            return null;
+        }
+    }
+
+    private void writeObject(DataOutputStream out, Object value, Schema schema) throws IOException {
+        out.writeInt(schema.hash);
+        for (Field field : schema.fields) {
+            Object fieldValue;
+            try {
+                fieldValue = field.get(value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            out.writeBoolean(fieldValue != null);
+            if (fieldValue == null) {
+                continue;
+            }
+            Class<?> fieldType = field.getType();
+            if (fieldType == String.class) {
+                byte[] chars = ((String) fieldValue).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(chars.length);
+                out.write(chars);
+            } else if (fieldType == Long.class || fieldType == long.class) {
+                out.writeLong((Long) fieldValue);
+            } else if (fieldType == Integer.class || fieldType == int.class) {
+                out.writeInt((Integer) fieldValue);
+            } else if (fieldType == Double.class || fieldType == double.class) {
+                out.writeDouble((Double) fieldValue);
+            } else if (fieldType == Boolean.class || fieldType == boolean.class) {
+                out.writeBoolean((Boolean) fieldValue);
+            } else if (fieldType == LocalDateTime.class) {
+                LocalDateTime time = (LocalDateTime) fieldValue;
+                out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeInt(time.getNano());
+            } else {
+                //Object字段，按实际类型嵌套编码
+                Schema nested = schemaOf(fieldValue.getClass());
+                if (nested == null) {
+                    throw new IllegalStateException("不支持的字段类型：" + fieldValue.getClass().getName());
+                }
+                writeObject(out, fieldValue, nested);
+            }
+        }
+    }
+
+    private Object readObject(DataInputStream in, Class<?> type, Class<?> nestedType)
+            throws IOException, ReflectiveOperationException {
+        Schema schema = schemaOf(type);
+        //实体类字段已变化，旧数据作废
+        if (schema == null || in.readInt() != schema.hash) {
+            throw new IllegalStateException("缓存数据结构不匹配：" + type.getName());
+        }
+        Object value = schema.constructor.newInstance();
+        for (Field field : schema.fields) {
+            if (!in.readBoolean()) {
+                continue;
+            }
+            Class<?> fieldType = field.getType();
+            Object fieldValue;
+            if (fieldType == String.class) {
+                byte[] chars = new byte[in.readInt()];
+                in.readFully(chars);
+                fieldValue = new String(chars, StandardCharsets.UTF_8);
+            } else if (fieldType == Long.class || fieldType == long.class) {
+                fieldValue = in.readLong();
+            } else if (fieldType == Integer.class || fieldType == int.class) {
+                fieldValue = in.readInt();
+            } else if (fieldType == Double.class || fieldType == double.class) {
+                fieldValue = in.readDouble();
+            } else if (fieldType == Boolean.class || fieldType == boolean.class) {
+                fieldValue = in.readBoolean();
+            } else if (fieldType == LocalDateTime.class) {
+                fieldValue = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+            } else {
+                fieldValue = readObject(in, nestedType == null ? fieldType : nestedType, null);
+            }
+            field.set(value, fieldValue);
+        }
+        return value;
+    }
+
+    //获取类的字段结构，含有不支持的字段类型或者没有无参构造时返回null
+    private static Schema schemaOf(Class<?> type) {
+        Schema schema = SCHEMAS.get(type);
+        if (schema == null) {
+            schema = Schema.of(type);
+            SCHEMAS.put(type, schema);
+        }
+        return schema == Schema.UNSUPPORTED ? null : schema;
+    }
+
+    private static class Schema {
+        private static final Schema UNSUPPORTED = new Schema(null, Collections.emptyList(), 0);
+        private static final Set<Class<?>> SUPPORTED_TYPES = new HashSet<>(Arrays.asList(
+                String.class, Long.class, long.class, Integer.class, int.class, Double.class, double.class,
+                Boolean.class, boolean.class, LocalDateTime.class, Object.class));
+
+        private final Constructor<?> constructor;
+        private final List<Field> fields;
+        private final int hash;
+
+        private Schema(Constructor<?> constructor, List<Field> fields, int hash) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.hash = hash;
+        }
+
+        private static Schema of(Class<?> type) {
+            if (type.isPrimitive() || type.isArray() || type.isInterface() || type.getName().startsWith("java.")) {
+                return UNSUPPORTED;
+            }
+            List<Field> fields = new ArrayList<>();
+            for (Field field : type.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                if (!SUPPORTED_TYPES.contains(field.getType())) {
+                    return UNSUPPORTED;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+            //按字段名排序，保证各节点的字段顺序一致
+            fields.sort(Comparator.comparing(Field::getName));
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (Field field : fields) {
+                signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+            }
+            try {
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return new Schema(constructor, fields, signature.toString().hashCode());
+            } catch (NoSuchMethodException e) {
+                return UNSUPPORTED;
+            }
+        }
+    }
+}
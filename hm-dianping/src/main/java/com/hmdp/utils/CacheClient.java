@@ -1,40 +1,325 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    //本地一级缓存，保存反序列化后的对象，容量和有效期都有上限
+    private final LRUCache<String, Object> localCache = CacheUtil.newLRUCache(
+            RedisConstants.CACHE_LOCAL_SIZE,
+            TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_LOCAL_TTL));
+    //本地缓存按key分段的失效版本，读取Redis期间发生失效时不回填旧数据
+    private final AtomicLongArray localVersions = new AtomicLongArray(RedisConstants.CACHE_LOCAL_STRIPES);
+    private final RedissonClient redissonClient;
+    //逻辑过期提前刷新的系数，越大越早刷新，为0时只在过期后刷新
+    @Value("${hmdp.cache.xfetch-beta:1.0}")
+    private double xfetchBeta;
+    //有效期随机增加的最大比例，避免大量key同时过期
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    //剩余有效期低于该比例时后台刷新，为0时不启用
+    @Value("${hmdp.cache.soft-ttl-ratio:0}")
+    private double softTtlRatio;
+    //按key前缀注册的布隆过滤器，没有注册的前缀不做过滤
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    //本节点正在加载的key，并发请求共享同一次加载
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+    //等待其他节点重建完成的key
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> rebuildNotices = new ConcurrentHashMap<>();
+    //写入使用配置的编码，读取时根据数据头部选择编码，JSON和二进制数据可以共存
+    private final CacheCodec codec;
+    private final CacheCodec jsonCodec;
+    private final CacheCodec binaryCodec;
+    private final CacheMetrics cacheMetrics;
+    private final HotKeyDetector hotKeyDetector;
+    private final CacheRebuildExecutor cacheRebuildExecutor;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer listenerContainer,
+                       RedissonClient redissonClient,
+                       CacheMetrics cacheMetrics,
+                       HotKeyDetector hotKeyDetector,
+                       CacheRebuildExecutor cacheRebuildExecutor,
+                       @Value("${hmdp.cache.codec:json}") String codecName,
+                       @Value("${hmdp.cache.compress-threshold:512}") int compressThreshold) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.jsonCodec = new JsonCacheCodec();
+        this.binaryCodec = new BinaryCacheCodec(compressThreshold);
+        this.codec = "binary".equalsIgnoreCase(codecName) ? binaryCodec : jsonCodec;
+        this.cacheMetrics = cacheMetrics;
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheRebuildExecutor = cacheRebuildExecutor;
+        //订阅缓存失效频道，任意节点删除缓存时清除本地缓存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            invalidateLocal(key);
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        //订阅缓存重建频道，唤醒等待该key重建的线程
+        listenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> notice = rebuildNotices.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (notice != null){
+                notice.complete(null);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_REBUILT_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit timeUnit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        setBytes(key, codec.encode(value), time, timeUnit);
+    }
+
+    //写入空值，防止缓存穿透
+    private void setNull(String key){
+        setBytes(key, new byte[0], RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
     }
 
     public void setWithExpire(String key, Object value, Long time, TimeUnit timeUnit){
-        //设置逻辑过期
+        setWithExpire(key, value, time, timeUnit, 0L);
+    }
+
+    private void setWithExpire(String key, Object value, Long time, TimeUnit timeUnit, Long delta){
+        //设置逻辑过期，同时记录重建耗时
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
+        redisData.setExpireTime(LocalDateTime.now().plus(jitter(timeUnit.toMillis(time)), ChronoUnit.MILLIS));
+        redisData.setDelta(delta);
         //写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, codec.encode(redisData), null, null);
+    }
+
+    //批量写入逻辑过期数据，用于缓存预热，delta为本批数据的加载耗时
+    public <T, I> void setBatchWithExpire(String keyPrefix, Collection<T> values, Function<T, I> idGetter,
+                                          Long time, TimeUnit timeUnit, Long delta){
+        LocalDateTime now = LocalDateTime.now();
+        long millis = timeUnit.toMillis(time);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (T value : values) {
+                RedisData redisData = new RedisData();
+                redisData.setData(value);
+                //逻辑过期时间错开，避免同一批数据同时重建
+                redisData.setExpireTime(now.plus(jitter(millis), ChronoUnit.MILLIS));
+                redisData.setDelta(delta);
+                connection.stringCommands().set(
+                        (keyPrefix + idGetter.apply(value)).getBytes(StandardCharsets.UTF_8),
+                        codec.encode(redisData));
+            }
+            return null;
+        });
+    }
+
+    //读取原始字节，key不存在时返回null，空值为长度0的数组
+    private byte[] getBytes(String keyPrefix, String strategy, String key){
+        long begin = System.nanoTime();
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+        cacheMetrics.redisRead(keyPrefix, strategy, System.nanoTime() - begin);
+        return bytes;
+    }
+
+    //读取数据，启用软过期时通过管道同时查询剩余有效期，低于阈值时后台刷新
+    private <T, I> byte[] getBytesWithSoftTtl(String keyPrefix, String strategy, String key, I id,
+                                              Function<I, T> dbFallback, Long time, TimeUnit timeUnit){
+        if (softTtlRatio <= 0){
+            return getBytes(keyPrefix, strategy, key);
+        }
+        long begin = System.nanoTime();
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        //不指定序列化器，返回原始字节
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.stringCommands().get(rawKey);
+            connection.keyCommands().pTtl(rawKey);
+            return null;
+        }, null);
+        cacheMetrics.redisRead(keyPrefix, strategy, System.nanoTime() - begin);
+        byte[] bytes = (byte[]) results.get(0);
+        Long pttl = (Long) results.get(1);
+        if (bytes != null && bytes.length > 0 && pttl != null && pttl > 0
+                && pttl < timeUnit.toMillis(time) * softTtlRatio){
+            refreshAsync(keyPrefix, strategy, id, dbFallback, time, timeUnit);
+        }
+        return bytes;
+    }
+
+    //后台刷新缓存，本节点按key去重，各节点之间通过互斥锁保证只有一个节点刷新
+    private <T, I> void refreshAsync(String keyPrefix, String strategy, I id,
+                                     Function<I, T> dbFallback, Long time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        String lock = lockKey(key);
+        long softTtl = (long) (timeUnit.toMillis(time) * softTtlRatio);
+        cacheRebuildExecutor.submit(key, () -> {
+            if (!tryLock(lock)){
+                return;
+            }
+            try {
+                //双重检查，其他节点可能已经刷新
+                Long pttl = stringRedisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+                if (pttl != null && pttl >= softTtl){
+                    return;
+                }
+                T t = load(keyPrefix, strategy, () -> dbFallback.apply(id));
+                if (t == null){
+                    setNull(key);
+                } else {
+                    this.set(key, t, time, timeUnit);
+                }
+                //清除本节点和其他节点的本地缓存
+                invalidateLocal(key);
+                stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+                cacheMetrics.rebuild(keyPrefix, strategy, true);
+            } catch (Exception e) {
+                cacheMetrics.rebuild(keyPrefix, strategy, false);
+                log.error("刷新缓存失败：{}", key, e);
+            } finally {
+                unlock(lock);
+            }
+        });
+    }
+
+    //有效期增加[0, ttlJitter)比例的随机时间
+    private long jitter(long millis){
+        if (ttlJitter <= 0){
+            return millis;
+        }
+        return millis + (long) (millis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private void setBytes(String key, byte[] value, Long time, TimeUnit timeUnit){
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            if (time == null){
+                connection.stringCommands().set(rawKey, value);
+            } else {
+                connection.stringCommands().pSetEx(rawKey, jitter(timeUnit.toMillis(time)), value);
+            }
+            return null;
+        });
+    }
+
+    private <T> T decode(String keyPrefix, String strategy, byte[] bytes, Class<T> type){
+        long begin = System.nanoTime();
+        T t = (BinaryCacheCodec.isBinary(bytes) ? binaryCodec : jsonCodec).decode(bytes, type);
+        cacheMetrics.decode(keyPrefix, strategy, System.nanoTime() - begin);
+        return t;
+    }
+
+    private <T> RedisData decodeRedisData(String keyPrefix, byte[] bytes, Class<T> dataType){
+        long begin = System.nanoTime();
+        RedisData redisData = (BinaryCacheCodec.isBinary(bytes) ? binaryCodec : jsonCodec)
+                .decodeRedisData(bytes, dataType);
+        cacheMetrics.decode(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, System.nanoTime() - begin);
+        return redisData;
+    }
+
+    //查询数据库，记录耗时
+    private <R> R load(String keyPrefix, String strategy, Supplier<R> dbFallback){
+        long begin = System.nanoTime();
+        try {
+            return dbFallback.get();
+        } finally {
+            cacheMetrics.load(keyPrefix, strategy, System.nanoTime() - begin);
+        }
+    }
+
+    //删除缓存，并通知所有节点清除本地缓存
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    //先增加版本再删除，正在读取的线程回填时能发现已失效
+    private void invalidateLocal(String key){
+        localVersions.incrementAndGet(localStripe(key));
+        localCache.remove(key);
+        hotKeyDetector.evict(key);
+    }
+
+    private long localVersion(String key){
+        return localVersions.get(localStripe(key));
+    }
+
+    private static int localStripe(String key){
+        return (key.hashCode() & Integer.MAX_VALUE) % RedisConstants.CACHE_LOCAL_STRIPES;
+    }
+
+    //回填本地缓存，读取期间版本发生变化时放弃，写入后再检查一次，避免与失效交错
+    private void putLocal(String key, Object value, long version){
+        if (localVersion(key) != version){
+            return;
+        }
+        localCache.put(key, value);
+        if (localVersion(key) != version){
+            localCache.remove(key);
+        }
+    }
+
+    //为key前缀注册布隆过滤器，过滤器不存在时由获取到锁的节点用数据库中已有的id初始化
+    //初始化完成前所有节点都不做过滤，初始化中途宕机时锁自动释放，由之后启动的节点重新初始化
+    public <I> void initBloomFilter(String keyPrefix, long expectedInsertions, Supplier<Collection<I>> idLoader){
+        RedisBloomFilter bloomFilter = new RedisBloomFilter(stringRedisTemplate, keyPrefix,
+                expectedInsertions, RedisConstants.CACHE_BLOOM_FPP);
+        bloomFilters.put(keyPrefix, bloomFilter);
+        if (bloomFilter.exists()){
+            return;
+        }
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_BLOOM_KEY + keyPrefix);
+        //其他节点正在初始化
+        if (!lock.tryLock()){
+            return;
+        }
+        try {
+            //双重检查，其他节点可能刚刚初始化完成
+            if (bloomFilter.exists()){
+                return;
+            }
+            //先创建临时位图再读取id，读取期间新增的id会同时写入临时位图
+            int count = bloomFilter.build(idLoader::get);
+            log.info("初始化布隆过滤器：{}，数量：{}", keyPrefix, count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //新增数据后加入布隆过滤器
+    public <I> void addToBloomFilter(String keyPrefix, I id){
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null){
+            bloomFilter.add(id);
+        }
+    }
+
+    //布隆过滤器判断id可能存在，没有注册过滤器或者过滤器未初始化完成时总是返回true
+    private <I> boolean mightContain(String keyPrefix, I id){
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.contains(id);
     }
 
     //缓存穿透
@@ -43,74 +328,252 @@ public class CacheClient {
                         Function<I, T> dbFallback,
                         Long time, TimeUnit timeUnit){
         String key = keyPrefix + id;
+        //统计访问，该策略已有本地缓存，不需要再固定热点key
+        hotKeyDetector.record(key);
+        //先查本地缓存，读取不延长有效期
+        Object local = localCache.get(key, false);
+        if (type.isInstance(local)){
+            cacheMetrics.result(keyPrefix, CacheMetrics.PENETRATION, CacheMetrics.LOCAL_HIT);
+            return type.cast(local);
+        }
 
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //不为null和""
-        if (StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+        //读取Redis之前记录版本
+        long version = localVersion(key);
+        byte[] bytes = getBytesWithSoftTtl(keyPrefix, CacheMetrics.PENETRATION, key, id, dbFallback, time, timeUnit);
+        //为空值
+        if (bytes != null && bytes.length == 0){
+            cacheMetrics.result(keyPrefix, CacheMetrics.PENETRATION, CacheMetrics.NULL_HIT);
+            return null;
+        }
+        //不为null和空值，解码失败时按未命中处理
+        if (bytes != null){
+            T t = decode(keyPrefix, CacheMetrics.PENETRATION, bytes, type);
+            if (t != null){
+                cacheMetrics.result(keyPrefix, CacheMetrics.PENETRATION, CacheMetrics.HIT);
+                putLocal(key, t, version);
+                return t;
+            }
         }
-        //为""
-        if ("".equals(json)){
+        //Redis未命中时由布隆过滤器判断，不存在时直接返回，不查询数据库
+        if (!mightContain(keyPrefix, id)){
+            cacheMetrics.result(keyPrefix, CacheMetrics.PENETRATION, CacheMetrics.NULL_HIT);
             return null;
         }
+        cacheMetrics.result(keyPrefix, CacheMetrics.PENETRATION, CacheMetrics.MISS);
         //数据库查询
-        T t = dbFallback.apply(id);
+        T t = load(keyPrefix, CacheMetrics.PENETRATION, () -> dbFallback.apply(id));
         //不存在，写入空值
         if (t == null){
-            this.set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
             return null;
         }
         //存在
         this.set(key, t, time, timeUnit);
+        putLocal(key, t, version);
 
         return t;
     }
 
-    //缓存击穿基于互斥锁
+    //批量查询，解决缓存穿透，返回结果与ids顺序一致，不存在的id对应位置为null
+    //批量结果可能被调用方修改，因此不经过本地缓存
+    public <T, I> List<T> queryBatchWithPenetration(String keyPrefix,
+                                                    Collection<I> ids, Class<T> type,
+                                                    Function<Collection<I>, List<T>> dbFallback,
+                                                    Function<T, I> idGetter,
+                                                    Long time, TimeUnit timeUnit){
+        List<I> idList = new ArrayList<>(ids);
+        List<T> result = new ArrayList<>(Collections.nCopies(idList.size(), null));
+        if (idList.isEmpty()){
+            return result;
+        }
+        //统计访问，批量结果会被调用方修改，不固定在本地
+        idList.forEach(id -> hotKeyDetector.record(keyPrefix + id));
+        byte[][] keys = idList.stream()
+                .map(id -> (keyPrefix + id).getBytes(StandardCharsets.UTF_8))
+                .toArray(byte[][]::new);
+        //MGET一次查询所有key
+        long begin = System.nanoTime();
+        List<byte[]> values = stringRedisTemplate.execute(
+                (RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(keys));
+        cacheMetrics.redisRead(keyPrefix, CacheMetrics.BATCH, System.nanoTime() - begin);
+        //记录未命中的下标
+        List<Integer> missIndexes = new ArrayList<>();
+        int nullHits = 0;
+        for (int i = 0; i < idList.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            //长度为0说明是空值
+            if (bytes != null && bytes.length == 0){
+                nullHits++;
+                continue;
+            }
+            T t = bytes == null ? null : decode(keyPrefix, CacheMetrics.BATCH, bytes, type);
+            //为null或者解码失败才需要查数据库
+            if (t == null){
+                missIndexes.add(i);
+            } else {
+                result.set(i, t);
+            }
+        }
+        cacheMetrics.result(keyPrefix, CacheMetrics.BATCH, CacheMetrics.HIT, idList.size() - nullHits - missIndexes.size());
+        cacheMetrics.result(keyPrefix, CacheMetrics.BATCH, CacheMetrics.NULL_HIT, nullHits);
+        cacheMetrics.result(keyPrefix, CacheMetrics.BATCH, CacheMetrics.MISS, missIndexes.size());
+        if (missIndexes.isEmpty()){
+            return result;
+        }
+        //未命中的id一次查询数据库
+        Set<I> missIds = missIndexes.stream().map(idList::get).collect(Collectors.toCollection(LinkedHashSet::new));
+        Map<I, T> loaded = load(keyPrefix, CacheMetrics.BATCH, () -> dbFallback.apply(missIds)).stream()
+                .collect(Collectors.toMap(idGetter, Function.identity(), (a, b) -> a));
+        //通过管道一次写回数据和空值
+        long millis = timeUnit.toMillis(time);
+        long nullMillis = TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (I id : missIds) {
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                T t = loaded.get(id);
+                if (t == null){
+                    connection.stringCommands().pSetEx(rawKey, jitter(nullMillis), new byte[0]);
+                } else {
+                    connection.stringCommands().pSetEx(rawKey, jitter(millis), codec.encode(t));
+                }
+            }
+            return null;
+        });
+        for (Integer i : missIndexes) {
+            result.set(i, loaded.get(idList.get(i)));
+        }
+        return result;
+    }
+
+    //缓存击穿基于互斥锁，同一个key同时只有一次加载
     public <T, I> T queryWithBreakdownByMutex(String keyPrefix,
                                               I id, Class<T> type,
                                               Function<I, T> dbFallback,
                                               Long time, TimeUnit timeUnit){
         String key = keyPrefix + id;
+        //热点key先查本地
+        boolean hot = hotKeyDetector.record(key);
+        if (hot) {
+            Object pinned = hotKeyDetector.getPinned(key);
+            if (type.isInstance(pinned)) {
+                cacheMetrics.result(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.LOCAL_HIT);
+                return type.cast(pinned);
+            }
+        }
         //从Redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //判断是否存在，不为null和空字符串""的情况
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, type);
+        byte[] bytes = getBytesWithSoftTtl(keyPrefix, CacheMetrics.MUTEX, key, id, dbFallback, time, timeUnit);
+        //命中的是否为空值
+        if (bytes != null && bytes.length == 0) {
+            cacheMetrics.result(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.NULL_HIT);
+            return null;
+        }
+        //判断是否存在，解码失败时按未命中处理
+        if (bytes != null) {
+            T t = decode(keyPrefix, CacheMetrics.MUTEX, bytes, type);
+            if (t != null) {
+                cacheMetrics.result(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.HIT);
+                if (hot) {
+                    hotKeyDetector.pin(key, t);
+                }
+                return t;
+            }
         }
-        //命中的是否为空字符串
-        if ("".equals(json)) {
+        //Redis未命中时由布隆过滤器判断，不存在时直接返回
+        if (!mightContain(keyPrefix, id)){
+            cacheMetrics.result(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.NULL_HIT);
             return null;
         }
+        cacheMetrics.result(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.MISS);
 
-        T t = null;
-        String lock = RedisConstants.LOCK_SHOP_KEY + id;
+        //本节点已经有线程在加载，共享同一个结果
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlightLoads.putIfAbsent(key, future);
+        if (loading != null){
+            return type.cast(loading.join());
+        }
         try {
-            //尝试获取互斥锁
-            boolean isLock = tryLock(lock);
-            //获取失败
-            if (!isLock){
-                Thread.sleep(50);
-                //递归，直到能够获取到shop
-                return queryWithBreakdownByMutex(keyPrefix, id, type, dbFallback, time, timeUnit);
-            }
-            //为null不存在，根据id查询
-            t = dbFallback.apply(id);
-            //id不存在，返回错误信息
-            if (t == null) {
-                //将空值写入Redis
-                this.set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            T t = loadWithMutex(keyPrefix, id, type, dbFallback, time, timeUnit);
+            future.complete(t);
+            return t;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
+
+    private <T, I> T loadWithMutex(String keyPrefix, I id, Class<T> type,
+                                   Function<I, T> dbFallback,
+                                   Long time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        String lock = lockKey(key);
+        //尝试获取互斥锁
+        if (tryLock(lock)){
+            try {
+                //双重检查，其他节点可能刚刚重建完成
+                byte[] bytes = getBytes(keyPrefix, CacheMetrics.MUTEX, key);
+                if (bytes != null && bytes.length == 0){
+                    return null;
+                }
+                T t = bytes == null ? null : decode(keyPrefix, CacheMetrics.MUTEX, bytes, type);
+                if (t != null){
+                    return t;
+                }
+                return loadAndCache(keyPrefix, id, dbFallback, time, timeUnit);
+            } finally {
+                //释放锁，并通知等待的节点
+                unlock(lock);
+                stringRedisTemplate.convertAndSend(RedisConstants.CACHE_REBUILT_CHANNEL, key);
+            }
+        }
+
+        //其他节点正在重建，等待重建完成的通知，而不是轮询Redis
+        cacheMetrics.lockContention(keyPrefix, CacheMetrics.MUTEX);
+        CompletableFuture<Void> notice = rebuildNotices.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            //注册之后再查一次，避免通知发生在注册之前
+            byte[] bytes = getBytes(keyPrefix, CacheMetrics.MUTEX, key);
+            if (bytes == null){
+                notice.get(RedisConstants.CACHE_REBUILD_WAIT, TimeUnit.MILLISECONDS);
+                bytes = getBytes(keyPrefix, CacheMetrics.MUTEX, key);
+            }
+            if (bytes != null && bytes.length == 0){
                 return null;
             }
-            //id存在，将数据写入Redis，设置有效期
-            this.set(key, JSONUtil.toJsonStr(t), time, timeUnit);
+            T t = bytes == null ? null : decode(keyPrefix, CacheMetrics.MUTEX, bytes, type);
+            if (t != null){
+                return t;
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            log.debug("等待缓存重建超时：{}", key);
         } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            Thread.currentThread().interrupt();
         } finally {
-            //释放锁，finally的执行早于try里面的return
-            unlock(lock);
+            rebuildNotices.remove(key, notice);
         }
+        //等待超时，直接查询数据库
+        return loadAndCache(keyPrefix, id, dbFallback, time, timeUnit);
+    }
 
+    //查询数据库并写入缓存，不存在时写入空值
+    private <T, I> T loadAndCache(String keyPrefix, I id, Function<I, T> dbFallback, Long time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        T t;
+        try {
+            t = load(keyPrefix, CacheMetrics.MUTEX, () -> dbFallback.apply(id));
+        } catch (RuntimeException e) {
+            cacheMetrics.rebuild(keyPrefix, CacheMetrics.MUTEX, false);
+            throw e;
+        }
+        cacheMetrics.rebuild(keyPrefix, CacheMetrics.MUTEX, true);
+        if (t == null) {
+            //将空值写入Redis
+            setNull(key);
+            return null;
+        }
+        //id存在，将数据写入Redis，设置有效期
+        this.set(key, t, time, timeUnit);
         return t;
     }
 
@@ -120,44 +583,95 @@ public class CacheClient {
                                               Function<I, T> dbFallback,
                                               Long addTime, TimeUnit timeUnit){
         String key = keyPrefix + id;
-        //从Redis查询商铺缓存
-        String redisDataShopJson = stringRedisTemplate.opsForValue().get(key);
-        //判断是否存在，为null和空字符串""的情况
-        if (StrUtil.isBlank(redisDataShopJson)) {
-            //不存在，就不是热点key，一般热点商铺都会提前存入Redis，返回错误信息
-            return null;
+        //热点key先查本地，本地保存的是RedisData，仍然按逻辑过期时间判断是否需要重建
+        boolean hot = hotKeyDetector.record(key);
+        Object pinned = hot ? hotKeyDetector.getPinned(key) : null;
+        RedisData redisData = pinned instanceof RedisData && type.isInstance(((RedisData) pinned).getData())
+                ? (RedisData) pinned : null;
+        if (redisData == null) {
+            //从Redis查询商铺缓存
+            byte[] bytes = getBytes(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, key);
+            //判断是否存在，为null和空值的情况
+            if (bytes == null || bytes.length == 0) {
+                //不存在，就不是热点key，一般热点商铺都会提前存入Redis，返回错误信息
+                cacheMetrics.result(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.MISS);
+                return null;
+            }
+            //解码，data直接解码为目标类型
+            redisData = decodeRedisData(keyPrefix, bytes, type);
+            if (redisData == null) {
+                cacheMetrics.result(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.MISS);
+                return null;
+            }
+            if (hot) {
+                hotKeyDetector.pin(key, redisData);
+            }
         }
-        //json转对象
-        RedisData redisData = JSONUtil.toBean(redisDataShopJson, RedisData.class);
-        T t = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        //判断是否过期
-        if(!LocalDateTime.now().isAfter(redisData.getExpireTime())){
+        T t = type.cast(redisData.getData());
+        //判断是否需要刷新，临近过期时按概率提前刷新
+        if(!shouldRefresh(redisData)){
             //未过期，返回
+            cacheMetrics.result(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.HIT);
             return t;
         }
+        cacheMetrics.result(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.STALE);
 
-        String lock = RedisConstants.LOCK_SHOP_KEY + id;
-        //获取互斥锁成功
-        if(tryLock(lock)){
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //注意！需要进行双重检查，因为线程b在线程a重建缓存前，判断shop过期
-                    //在线程a释放锁后，因为某种原因线程b才开始获取互斥锁，导致重复重建缓存
-
-                    //重建缓存
-                    this.setWithExpire(key, dbFallback.apply(id), addTime, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unlock(lock);
+        String lock = lockKey(key);
+        LocalDateTime expireTime = redisData.getExpireTime();
+        //提交重建任务，本节点同一个key只会有一个任务
+        cacheRebuildExecutor.submit(key, () -> {
+            //获取互斥锁失败，说明其他节点正在重建
+            if(!tryLock(lock)){
+                cacheMetrics.lockContention(keyPrefix, CacheMetrics.LOGICAL_EXPIRE);
+                return;
+            }
+            try {
+                //双重检查，线程b在线程a重建缓存前读到旧数据，在线程a释放锁后才获取到锁，避免重复重建
+                byte[] latestBytes = getBytes(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, key);
+                RedisData latestData = latestBytes == null || latestBytes.length == 0
+                        ? null : decodeRedisData(keyPrefix, latestBytes, type);
+                if (latestData != null && latestData.getExpireTime().isAfter(expireTime)){
+                    //其他节点已经重建，本地固定的旧数据同样作废
+                    hotKeyDetector.evict(key);
+                    return;
                 }
-            });
-        }
+                //重建缓存，记录耗时
+                long begin = System.currentTimeMillis();
+                T latest = load(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, () -> dbFallback.apply(id));
+                this.setWithExpire(key, latest, addTime, timeUnit, System.currentTimeMillis() - begin);
+                //本地固定的旧数据作废，并通知其他节点
+                hotKeyDetector.evict(key);
+                stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+                cacheMetrics.rebuild(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, true);
+            } catch (Exception e) {
+                cacheMetrics.rebuild(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, false);
+                log.error("重建缓存失败：{}", key, e);
+            } finally {
+                //释放锁
+                unlock(lock);
+            }
+        });
         //无论是否过期都返回
         return t;
     }
 
+    //XFetch算法：剩余时间越短、重建越慢，提前刷新的概率越大，避免各节点同时在过期时刻重建
+    private boolean shouldRefresh(RedisData redisData){
+        LocalDateTime now = LocalDateTime.now();
+        Long delta = redisData.getDelta();
+        if (xfetchBeta <= 0 || delta == null || delta <= 0){
+            return !now.isBefore(redisData.getExpireTime());
+        }
+        //-ln(rand)服从指数分布，rand取(0, 1]避免得到无穷大
+        double gap = delta * xfetchBeta * -Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return !now.plus((long) gap, ChronoUnit.MILLIS).isBefore(redisData.getExpireTime());
+    }
+
+    //重建锁按完整的缓存key区分，不同前缀的相同id不会互相阻塞
+    private static String lockKey(String key){
+        return RedisConstants.LOCK_CACHE_KEY + key;
+    }
+
     private boolean tryLock(String lockKey){
         //尝试获取互斥锁，设置有效时间
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(lockKey,
@@ -0,0 +1,12 @@
+package com.hmdp.utils;
+
+//缓存值的编解码，Redis中保存的是编码后的字节
+public interface CacheCodec {
+    byte[] encode(Object value);
+
+    //解码失败（例如实体类字段已变化）时返回null，按未命中处理
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    //解码逻辑过期数据，data解码为dataType类型
+    <T> RedisData decodeRedisData(byte[] bytes, Class<T> dataType);
+}
@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//缓存统计端点：/actuator/cache
+@Component
+@Endpoint(id = "cache")
+public class CacheEndpoint {
+    @Resource
+    private CacheMetrics cacheMetrics;
+    @Resource
+    private CacheWarmUp cacheWarmUp;
+
+    @ReadOperation
+    public Map<String, Object> cache() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("caches", cacheMetrics.summary());
+        result.put("executors", cacheMetrics.executors());
+        return result;
+    }
+
+    //手动触发缓存预热，未开启预热时不执行
+    @WriteOperation
+    public Map<String, Object> warmUp() {
+        return cacheWarmUp.warmUp();
+    }
+}
@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.*;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+//缓存指标，按key前缀和缓存策略统计
+@Component
+public class CacheMetrics {
+    //缓存策略
+    public static final String PENETRATION = "penetration";
+    public static final String BATCH = "batch";
+    public static final String MUTEX = "mutex";
+    public static final String LOGICAL_EXPIRE = "logical_expire";
+
+    //查询结果
+    public static final String LOCAL_HIT = "local_hit";
+    public static final String HIT = "hit";
+    public static final String NULL_HIT = "null_hit";
+    public static final String STALE = "stale";
+    public static final String MISS = "miss";
+
+    private final MeterRegistry registry;
+
+    public CacheMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void result(String keyPrefix, String strategy, String result) {
+        result(keyPrefix, strategy, result, 1);
+    }
+
+    public void result(String keyPrefix, String strategy, String result, long amount) {
+        if (amount <= 0) {
+            return;
+        }
+        registry.counter("cache.gets", "prefix", keyPrefix, "strategy", strategy, "result", result)
+                .increment(amount);
+    }
+
+    //获取互斥锁失败
+    public void lockContention(String keyPrefix, String strategy) {
+        registry.counter("cache.lock.contention", "prefix", keyPrefix, "strategy", strategy).increment();
+    }
+
+    public void rebuild(String keyPrefix, String strategy, boolean success) {
+        registry.counter("cache.rebuilds", "prefix", keyPrefix, "strategy", strategy,
+                "result", success ? "success" : "failure").increment();
+    }
+
+    public void redisRead(String keyPrefix, String strategy, long nanos) {
+        timer("cache.redis.read", keyPrefix, strategy).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void decode(String keyPrefix, String strategy, long nanos) {
+        timer("cache.decode", keyPrefix, strategy).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void load(String keyPrefix, String strategy, long nanos) {
+        timer("cache.load", keyPrefix, strategy).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    //监控线程池的排队任务数和活跃线程数
+    public void monitorExecutor(String name, ThreadPoolExecutor executor) {
+        Gauge.builder("cache.executor.queued", executor, e -> e.getQueue().size())
+                .tag("name", name).register(registry);
+        Gauge.builder("cache.executor.active", executor, ThreadPoolExecutor::getActiveCount)
+                .tag("name", name).register(registry);
+    }
+
+    //线程池任务结果：success、failure、dropped、deduplicated、caller_runs
+    public void executorTask(String name, String result) {
+        registry.counter("cache.executor.tasks", "name", name, "result", result).increment();
+    }
+
+    //任务排队时间
+    public void executorWait(String name, long nanos) {
+        Timer.builder("cache.executor.wait").tag("name", name).publishPercentileHistogram()
+                .register(registry).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    //任务执行时间
+    public void executorRun(String name, long nanos) {
+        Timer.builder("cache.executor.run").tag("name", name).publishPercentileHistogram()
+                .register(registry).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String name, String keyPrefix, String strategy) {
+        //已注册的Timer会直接返回
+        return Timer.builder(name)
+                .tags("prefix", keyPrefix, "strategy", strategy)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    //汇总每个key前缀和策略的统计，key为 前缀 + 策略
+    public Map<String, Map<String, Object>> summary() {
+        Map<String, Map<String, Object>> summary = new TreeMap<>();
+        for (Meter meter : registry.getMeters()) {
+            Meter.Id id = meter.getId();
+            String keyPrefix = id.getTag("prefix");
+            if (!id.getName().startsWith("cache.") || keyPrefix == null) {
+                continue;
+            }
+            Map<String, Object> stats = summary.computeIfAbsent(
+                    keyPrefix + " " + id.getTag("strategy"), k -> new TreeMap<>());
+            String name = id.getName().substring("cache.".length());
+            if (meter instanceof Counter) {
+                String result = id.getTag("result");
+                stats.put(result == null ? name : name + "." + result, (long) ((Counter) meter).count());
+            } else if (meter instanceof Timer) {
+                Timer timer = (Timer) meter;
+                stats.put(name + ".count", timer.count());
+                stats.put(name + ".mean_ms", timer.mean(TimeUnit.MILLISECONDS));
+                stats.put(name + ".max_ms", timer.max(TimeUnit.MILLISECONDS));
+            }
+        }
+        //命中率，空值和过期数据也算命中
+        for (Map<String, Object> stats : summary.values()) {
+            long hits = count(stats, LOCAL_HIT) + count(stats, HIT) + count(stats, NULL_HIT) + count(stats, STALE);
+            long total = hits + count(stats, MISS);
+            if (total > 0) {
+                stats.put("hit_ratio", (double) hits / total);
+            }
+        }
+        return summary;
+    }
+
+    private static long count(Map<String, Object> stats, String result) {
+        Object value = stats.get("gets." + result);
+        return value == null ? 0 : (Long) value;
+    }
+
+    public Map<String, Object> executors() {
+        Map<String, Object> executors = new TreeMap<>();
+        for (Meter meter : registry.getMeters()) {
+            Meter.Id id = meter.getId();
+            if (!id.getName().startsWith("cache.executor.")) {
+                continue;
+            }
+            String name = id.getTag("name") + "." + id.getName().substring("cache.executor.".length());
+            if (meter instanceof Gauge) {
+                executors.put(name, (long) ((Gauge) meter).value());
+            } else if (meter instanceof Counter) {
+                executors.put(name + "." + id.getTag("result"), (long) ((Counter) meter).count());
+            } else if (meter instanceof Timer) {
+                Timer timer = (Timer) meter;
+                executors.put(name + ".mean_ms", timer.mean(TimeUnit.MILLISECONDS));
+                executors.put(name + ".max_ms", timer.max(TimeUnit.MILLISECONDS));
+            }
+        }
+        return executors;
+    }
+}
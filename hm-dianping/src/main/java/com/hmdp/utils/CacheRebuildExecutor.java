@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存重建线程池
+ * 同一个key同时只有一个重建任务，队列有上限，热点key优先执行，队列满时丢弃或者由调用线程执行
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+    private static final String NAME = "cache-rebuild";
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+    //队列满时的策略，drop：丢弃，caller-runs：调用线程执行
+    @Value("${hmdp.cache.rebuild.rejected-policy:drop}")
+    private String rejectedPolicy;
+    //关闭时等待已提交任务完成的时间，秒
+    @Value("${hmdp.cache.rebuild.await-termination:10}")
+    private long awaitTermination;
+
+    private ThreadPoolExecutor executor;
+    //排队和执行中的key
+    private final ConcurrentHashMap<String, Boolean> pendingKeys = new ConcurrentHashMap<>();
+    //排队中的任务数量，PriorityBlockingQueue没有容量上限，由这里限制
+    private final AtomicInteger queued = new AtomicInteger();
+    //相同优先级按提交顺序执行
+    private final AtomicLong sequence = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), new NamedThreadFactory(NAME + "-", false));
+        cacheMetrics.monitorExecutor(NAME, executor);
+    }
+
+    //提交重建任务，同一个key已有任务或者被丢弃时返回false
+    public boolean submit(String key, Runnable task) {
+        if (pendingKeys.putIfAbsent(key, Boolean.TRUE) != null) {
+            cacheMetrics.executorTask(NAME, "deduplicated");
+            return false;
+        }
+        RebuildTask rebuildTask = new RebuildTask(key, hotKeyDetector.isHot(key), task);
+        if (executor.isShutdown()) {
+            pendingKeys.remove(key);
+            cacheMetrics.executorTask(NAME, "dropped");
+            return false;
+        }
+        //队列已满
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            if ("caller-runs".equalsIgnoreCase(rejectedPolicy)) {
+                cacheMetrics.executorTask(NAME, "caller_runs");
+                rebuildTask.runTask();
+                return true;
+            }
+            pendingKeys.remove(key);
+            cacheMetrics.executorTask(NAME, "dropped");
+            log.warn("缓存重建队列已满，丢弃任务：{}", key);
+            return false;
+        }
+        try {
+            executor.execute(rebuildTask);
+        } catch (RejectedExecutionException e) {
+            //线程池已关闭
+            queued.decrementAndGet();
+            pendingKeys.remove(key);
+            cacheMetrics.executorTask(NAME, "dropped");
+            return false;
+        }
+        return true;
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(awaitTermination, TimeUnit.SECONDS)) {
+            log.warn("缓存重建任务未在{}秒内完成，剩余{}个任务被取消", awaitTermination, executor.shutdownNow().size());
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final boolean hot;
+        private final Runnable task;
+        private final long seq = sequence.incrementAndGet();
+        private final long submitTime = System.nanoTime();
+
+        private RebuildTask(String key, boolean hot, Runnable task) {
+            this.key = key;
+            this.hot = hot;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            runTask();
+        }
+
+        private void runTask() {
+            long begin = System.nanoTime();
+            cacheMetrics.executorWait(NAME, begin - submitTime);
+            try {
+                task.run();
+                cacheMetrics.executorTask(NAME, "success");
+            } catch (Exception e) {
+                cacheMetrics.executorTask(NAME, "failure");
+                log.error("缓存重建任务失败：{}", key, e);
+            } finally {
+                cacheMetrics.executorRun(NAME, System.nanoTime() - begin);
+                pendingKeys.remove(key);
+            }
+        }
+
+        //热点key优先，其次按提交顺序
+        @Override
+        public int compareTo(RebuildTask other) {
+            if (hot != other.hot) {
+                return hot ? -1 : 1;
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动时预热热点商铺的逻辑过期缓存，配合queryWithBreakdownByExpireTime使用
+ * 数据写入CACHE_SHOP_LOGICAL_KEY，只有商铺查询使用逻辑过期方案时才需要开启
+ * 启动预热完成前健康检查为DOWN，加入readiness分组后，预热完成才会接收流量
+ */
+@Slf4j
+@Component
+public class CacheWarmUp implements ApplicationRunner, HealthIndicator {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.cache.warm-up.enabled:false}")
+    private boolean enabled;
+    //固定预热的商铺id，逗号分隔
+    @Value("${hmdp.cache.warm-up.shop-ids:}")
+    private String shopIds;
+    //另外预热访问次数最多的商铺数量
+    @Value("${hmdp.cache.warm-up.top:100}")
+    private int top;
+    //访问次数衰减的间隔，毫秒
+    @Value("${hmdp.cache.warm-up.decay-interval:3600000}")
+    private long decayInterval;
+    //访问统计最多保留的商铺数量，不少于top
+    @Value("${hmdp.cache.warm-up.access-max-size:1000}")
+    private int accessMaxSize;
+
+    //启动预热是否结束
+    private volatile boolean ready;
+    private volatile Map<String, Object> lastResult = new LinkedHashMap<>();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        try {
+            warmUp();
+        } catch (Exception e) {
+            //预热失败不阻止节点接收流量，缓存未命中时按原有逻辑处理
+            log.error("缓存预热失败", e);
+        } finally {
+            ready = true;
+        }
+    }
+
+    //预热热点商铺，也可以通过POST /actuator/cache手动触发，未开启时不执行
+    public synchronized Map<String, Object> warmUp() {
+        if (!enabled) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("enabled", false);
+            return result;
+        }
+        long begin = System.currentTimeMillis();
+        Set<Long> ids = new LinkedHashSet<>();
+        for (String id : StrUtil.split(shopIds, ',', true, true)) {
+            ids.add(Long.valueOf(id));
+        }
+        if (top > 0) {
+            Set<String> hotIds = stringRedisTemplate.opsForZSet()
+                    .reverseRange(RedisConstants.CACHE_SHOP_ACCESS_KEY, 0, top - 1);
+            if (hotIds != null) {
+                hotIds.forEach(id -> ids.add(Long.valueOf(id)));
+            }
+        }
+        int count = ids.isEmpty() ? 0 : shopService.warmUpShopCache(ids);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("shops", count);
+        result.put("costMillis", System.currentTimeMillis() - begin);
+        lastResult = result;
+        log.info("缓存预热完成，商铺数量：{}，耗时：{}ms", count, result.get("costMillis"));
+        return result;
+    }
+
+    //访问次数减半并只保留访问最多的商铺，近期的热点排在前面，统计集合不会无限增长
+    //各节点都会执行，通过带有效期的标记保证每个间隔只衰减一次
+    @Scheduled(fixedDelayString = "${hmdp.cache.warm-up.decay-interval:3600000}")
+    public void decayAccessCount() {
+        if (!enabled) {
+            return;
+        }
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(
+                RedisConstants.CACHE_SHOP_ACCESS_DECAY_KEY, "1", decayInterval, TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(first)) {
+            return;
+        }
+        String key = RedisConstants.CACHE_SHOP_ACCESS_KEY;
+        stringRedisTemplate.opsForZSet().unionAndStore(key, Collections.emptyList(), key,
+                RedisZSetCommands.Aggregate.SUM, RedisZSetCommands.Weights.of(0.5));
+        stringRedisTemplate.opsForZSet().removeRange(key, 0, -Math.max(accessMaxSize, top) - 1L);
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder builder = ready ? Health.up() : Health.down();
+        return builder.withDetails(lastResult).build();
+    }
+}
@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 笔记推送线程池
+ * 队列有上限，队列满或者关闭时未执行的任务标记为FAILED，不会一直停留在RUNNING
+ */
+@Slf4j
+@Component
+public class FeedPushExecutor {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.feed.push.threads:4}")
+    private int threads;
+    @Value("${hmdp.feed.push.queue-capacity:1000}")
+    private int queueCapacity;
+    //关闭时等待已提交任务完成的时间，秒
+    @Value("${hmdp.feed.push.await-termination:30}")
+    private long awaitTermination;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    private void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), new NamedThreadFactory("feed-push-", false));
+    }
+
+    //提交推送任务，队列已满或者线程池已关闭时标记任务失败并返回false
+    public boolean submit(Long blogId, Runnable task) {
+        try {
+            executor.execute(new PushTask(blogId, task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.warn("笔记推送队列已满或已关闭，blogId：{}", blogId);
+            markFailed(blogId);
+            return false;
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (executor.awaitTermination(awaitTermination, TimeUnit.SECONDS)) {
+            return;
+        }
+        List<Runnable> unfinished = executor.shutdownNow();
+        log.warn("笔记推送任务未在{}秒内完成，剩余{}个任务标记为失败", awaitTermination, unfinished.size());
+        for (Runnable runnable : unfinished) {
+            markFailed(((PushTask) runnable).blogId);
+        }
+    }
+
+    private void markFailed(Long blogId) {
+        stringRedisTemplate.opsForHash().put(RedisConstants.FEED_JOB_KEY + blogId, "status", "FAILED");
+    }
+
+    private static class PushTask implements Runnable {
+        private final Long blogId;
+        private final Runnable task;
+
+        private PushTask(Long blogId, Runnable task) {
+            this.blogId = blogId;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
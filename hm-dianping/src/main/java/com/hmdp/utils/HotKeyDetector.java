@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测，用Count-Min Sketch统计每个key的访问次数，每秒计数减半
+ * 稳定访问时衰减后的计数约为QPS的两倍，超过阈值的key成为热点，被固定在本地缓存中
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 12;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    //计数衰减的线程
+    private static final ScheduledExecutorService HOT_KEY_DECAY_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+    //QPS达到该值的key成为热点，低于一半时取消
+    @Value("${hmdp.cache.hot-key.qps-threshold:500}")
+    private long qpsThreshold;
+    //最多同时固定的热点key数量
+    @Value("${hmdp.cache.hot-key.top-k:100}")
+    private int topK;
+    //热点key在本地缓存的有效期，毫秒
+    @Value("${hmdp.cache.hot-key.pin-ttl:1000}")
+    private long pinTtl;
+
+    private final AtomicLongArray[] sketch = new AtomicLongArray[DEPTH];
+    //当前的热点key，value为衰减前的估计计数
+    private final ConcurrentHashMap<String, Long> hotKeys = new ConcurrentHashMap<>();
+    //热点key的本地缓存
+    private LRUCache<String, Object> pinned;
+
+    @PostConstruct
+    private void init() {
+        for (int i = 0; i < DEPTH; i++) {
+            sketch[i] = new AtomicLongArray(WIDTH);
+        }
+        pinned = CacheUtil.newLRUCache(Math.max(topK, 1), pinTtl);
+        HOT_KEY_DECAY_EXECUTOR.scheduleAtFixedRate(this::decay, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        HOT_KEY_DECAY_EXECUTOR.shutdown();
+    }
+
+    //记录一次访问，返回该key当前是否为热点
+    public boolean record(String key) {
+        if (!enabled) {
+            return false;
+        }
+        int hash = key.hashCode();
+        long count = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            count = Math.min(count, sketch[i].incrementAndGet(index(hash, i)));
+        }
+        if (hotKeys.containsKey(key)) {
+            return true;
+        }
+        if (count < qpsThreshold * 2) {
+            return false;
+        }
+        hotKeys.put(key, count);
+        log.info("发现热点key：{}", key);
+        trim();
+        return hotKeys.containsKey(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    //查询固定在本地的热点数据，读取不延长有效期，热点key最多使用pin-ttl之前的数据
+    public Object getPinned(String key) {
+        return pinned.get(key, false);
+    }
+
+    //只固定热点key
+    public void pin(String key, Object value) {
+        if (value != null && hotKeys.containsKey(key)) {
+            pinned.put(key, value);
+        }
+    }
+
+    public void evict(String key) {
+        pinned.remove(key);
+    }
+
+    //当前热点key和估计的QPS，按QPS倒序
+    public Map<String, Long> hotKeys() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        hotKeys.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(e -> result.put(e.getKey(), e.getValue() / 2));
+        return result;
+    }
+
+    private long estimate(String key) {
+        int hash = key.hashCode();
+        long count = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            count = Math.min(count, sketch[i].get(index(hash, i)));
+        }
+        return count;
+    }
+
+    //每秒执行，更新热点key的计数，访问量下降的key取消固定，然后所有计数减半
+    private void decay() {
+        try {
+            for (String key : hotKeys.keySet()) {
+                long count = estimate(key);
+                if (count < qpsThreshold) {
+                    hotKeys.remove(key);
+                    pinned.remove(key);
+                    log.info("热点key已冷却：{}", key);
+                } else {
+                    hotKeys.put(key, count);
+                }
+            }
+            for (AtomicLongArray row : sketch) {
+                for (int j = 0; j < WIDTH; j++) {
+                    row.set(j, row.get(j) >> 1);
+                }
+            }
+        } catch (Exception e) {
+            log.error("热点key计数衰减失败", e);
+        }
+    }
+
+    //超过top-k时移除计数最小的key
+    private void trim() {
+        while (hotKeys.size() > topK) {
+            hotKeys.entrySet().stream()
+                    .min(Map.Entry.comparingByValue())
+                    .ifPresent(e -> {
+                        hotKeys.remove(e.getKey());
+                        pinned.remove(e.getKey());
+                    });
+        }
+    }
+
+    private static int index(int hash, int i) {
+        int h = hash * SEEDS[i];
+        h ^= h >>> 16;
+        return h & (WIDTH - 1);
+    }
+}
@@ -0,0 +1,21 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+//热点key端点：/actuator/hotkeys，返回热点key和估计的QPS
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyEndpoint {
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @ReadOperation
+    public Map<String, Long> hotKeys() {
+        return hotKeyDetector.hotKeys();
+    }
+}
@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+
+@Slf4j
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        } catch (RuntimeException e) {
+            log.warn("缓存解码失败：{}", type.getName(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public <T> RedisData decodeRedisData(byte[] bytes, Class<T> dataType) {
+        //只解析一次字符串，data直接从JSONObject转换
+        try {
+            JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+            RedisData redisData = json.toBean(RedisData.class);
+            JSONObject data = json.getJSONObject("data");
+            redisData.setData(data == null ? null : data.toBean(dataType));
+            return redisData;
+        } catch (RuntimeException e) {
+            log.warn("缓存解码失败：{}", dataType.getName(), e);
+            return null;
+        }
+    }
+}
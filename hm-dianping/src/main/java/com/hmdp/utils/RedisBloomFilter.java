@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.BooleanUtil;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * 基于Redis位图的布隆过滤器，先在临时key中批量写入，完成后RENAME为正式key
+ * 正式key不存在时不做过滤，保证初始化中途失败也不会误判存在的数据
+ */
+public class RedisBloomFilter {
+    //每次管道写入的元素数量
+    private static final int BUILD_BATCH_SIZE = 1000;
+
+    private static final DefaultRedisScript<Long> BLOOM_CONTAINS_SCRIPT;
+    private static final DefaultRedisScript<Long> BLOOM_ADD_SCRIPT;
+    static {
+        BLOOM_CONTAINS_SCRIPT = new DefaultRedisScript<>();
+        BLOOM_CONTAINS_SCRIPT.setLocation(new ClassPathResource("lua/bloomContains.lua"));
+        BLOOM_CONTAINS_SCRIPT.setResultType(Long.class);
+
+        BLOOM_ADD_SCRIPT = new DefaultRedisScript<>();
+        BLOOM_ADD_SCRIPT.setLocation(new ClassPathResource("lua/bloomAdd.lua"));
+        BLOOM_ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //正式的位图，hash tag保证几个key在Redis Cluster中位于同一个slot
+    private final String key;
+    //初始化中的位图
+    private final String buildingKey;
+    //位图大小和哈希次数，由初始化的节点写入，其他节点以此为准
+    private final String configKey;
+    private final long expectedInsertions;
+    private final double fpp;
+    private volatile long size;
+    private volatile int hashes;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String name, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = RedisConstants.CACHE_BLOOM_KEY + "{" + name + "}";
+        this.buildingKey = key + ":building";
+        this.configKey = key + ":config";
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+    }
+
+    public boolean exists() {
+        return BooleanUtil.isTrue(stringRedisTemplate.hasKey(key));
+    }
+
+    //写入临时位图后整体替换，返回写入的元素数量，调用方需保证同时只有一个节点执行
+    //临时位图和参数创建之后才调用loader读取数据，读取期间新增的数据由add写入临时位图，不会丢失
+    public int build(Supplier<? extends Collection<?>> loader) {
+        long m = optimalSize(expectedInsertions, fpp);
+        int k = optimalHashes(expectedInsertions, m);
+        stringRedisTemplate.delete(buildingKey);
+        Map<String, String> config = new HashMap<>(2);
+        config.put("size", String.valueOf(m));
+        config.put("hashes", String.valueOf(k));
+        stringRedisTemplate.opsForHash().putAll(configKey, config);
+        size = m;
+        hashes = k;
+        //先创建临时位图，之后新增的数据会同时写入临时位图，不会在替换后丢失
+        stringRedisTemplate.opsForValue().setBit(buildingKey, m - 1, false);
+        List<Object> list = new ArrayList<>(loader.get());
+        for (int i = 0; i < list.size(); i += BUILD_BATCH_SIZE) {
+            List<Object> batch = list.subList(i, Math.min(i + BUILD_BATCH_SIZE, list.size()));
+            byte[] rawKey = buildingKey.getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Object value : batch) {
+                    for (long offset : offsets(value.toString())) {
+                        connection.stringCommands().setBit(rawKey, offset, true);
+                    }
+                }
+                return null;
+            });
+        }
+        stringRedisTemplate.rename(buildingKey, key);
+        return list.size();
+    }
+
+    //正式位图不存在时返回true
+    public boolean contains(Object value) {
+        if (!loadConfig()) {
+            return true;
+        }
+        Long result = stringRedisTemplate.execute(BLOOM_CONTAINS_SCRIPT,
+                Collections.singletonList(key), offsetArgs(value.toString()));
+        return result == null || result != 0;
+    }
+
+    //同时写入正式位图和初始化中的位图，只写入已经存在的位图
+    public void add(Object value) {
+        if (!loadConfig()) {
+            return;
+        }
+        stringRedisTemplate.execute(BLOOM_ADD_SCRIPT,
+                Arrays.asList(key, buildingKey), offsetArgs(value.toString()));
+    }
+
+    //读取位图参数，没有节点初始化过时返回false
+    private boolean loadConfig() {
+        if (size > 0) {
+            return true;
+        }
+        Map<Object, Object> config = stringRedisTemplate.opsForHash().entries(configKey);
+        if (config.isEmpty()) {
+            return false;
+        }
+        hashes = Integer.parseInt(config.get("hashes").toString());
+        size = Long.parseLong(config.get("size").toString());
+        return true;
+    }
+
+    private Object[] offsetArgs(String value) {
+        long[] offsets = offsets(value);
+        Object[] args = new Object[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            args[i] = String.valueOf(offsets[i]);
+        }
+        return args;
+    }
+
+    //双重哈希，用128位MurmurHash的高低位组合出k个位置
+    private long[] offsets(String value) {
+        long m = size;
+        int k = hashes;
+        long[] hash = MurmurHash.hash128(value);
+        long[] offsets = new long[k];
+        long combined = hash[0];
+        for (int i = 0; i < k; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % m;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private static long optimalSize(long n, double p) {
+        return Math.max(1, (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2))));
+    }
+
+    private static int optimalHashes(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+}
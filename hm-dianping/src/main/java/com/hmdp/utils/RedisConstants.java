@@ -5,19 +5,68 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 30L;
+    public static final Long LOGIN_USER_REFRESH_TTL = 20L;
+    public static final int LOGIN_USER_LOCAL_SIZE = 10000;
+    public static final Long LOGIN_USER_LOCAL_TTL = 10L;
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    //逻辑过期方案的商铺缓存，值为RedisData，与CACHE_SHOP_KEY的数据结构不同，不能共用key
+    public static final String CACHE_SHOP_LOGICAL_KEY = "cache:shop-logical:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final int CACHE_LOCAL_SIZE = 1024;
+    public static final Long CACHE_LOCAL_TTL = 60L;
+    public static final int CACHE_LOCAL_STRIPES = 256;
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+    public static final Long CACHE_REBUILD_WAIT = 500L;
+    public static final String CACHE_BLOOM_KEY = "bloom:";
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type";
+    public static final String CACHE_SHOP_ACCESS_KEY = "cache:access:shop";
+    public static final String CACHE_SHOP_ACCESS_DECAY_KEY = "cache:access:shop:decay";
+    public static final String CACHE_SHOP_TYPE_CHANNEL = "cache:shop-type:refresh";
+    public static final double CACHE_BLOOM_FPP = 0.01;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
+    public static final String LOCK_BLOG_LIKED_FLUSH_KEY = "lock:blog:liked:flush";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+    public static final String LOCK_BLOG_HOT_KEY = "lock:blog:hot";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders:";
+    public static final String SECKILL_ORDER_STREAMS_KEY = "seckill:streams";
+    public static final Long SECKILL_ORDER_STREAM_RETIRE_DELAY = 60L;
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final Long SECKILL_VOUCHER_LOCAL_TTL = 60L;
+    public static final Long SECKILL_VOUCHER_REFRESH_TTL = 300L;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final Long SECKILL_SOLD_OUT_TTL = 60L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final int BLOG_HOT_REBUILD_BATCH_SIZE = 1000;
+    public static final String BLOG_LIKED_DIRTY_KEY = "blog:liked:dirty";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:flushing";
+    public static final int BLOG_LIKED_FLUSH_BATCH_SIZE = 500;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
     public static final String FEED_KEY = "feed:";
+    public static final long FEED_MAX_SIZE = 1000L;
+    public static final int FEED_PUSH_BATCH_SIZE = 500;
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHOR_KEY = "feed:big";
+    public static final String FEED_JOB_KEY = "feed:job:";
+    public static final Long FEED_JOB_TTL = 1L;
     public static final String FOLLOW_KEY = "follow:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+
+    //秒杀分片的key，hash tag为{voucherId:shard}，同一分片的key在Redis Cluster中位于同一个slot
+    public static String seckillShardKey(String prefix, Long voucherId, int shard) {
+        return prefix + "{" + voucherId + ":" + shard + "}";
+    }
 }
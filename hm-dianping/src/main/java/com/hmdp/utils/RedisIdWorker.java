@@ -1,39 +1,205 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     //起始时间戳为2023/1/1 00:00:00
     private static final long START_TIMESTAMP = 1672531200L;
     //序列号位数
     private static final int SN = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    //异步预取下一个号段的线程池
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
 
     private final StringRedisTemplate stringRedisTemplate;
+    //计算日期使用的时区
+    private final ZoneId zone;
+    //当前时间，毫秒
+    private final LongSupplier clock;
+    //号段大小，小于等于1时每个id都直接INCR
+    @Value("${hmdp.id-worker.segment-size:1000}")
+    private long segmentSize;
+    //当前号段使用比例超过该值时，异步预取下一个号段
+    @Value("${hmdp.id-worker.prefetch-ratio:0.8}")
+    private double prefetchRatio;
+    //每个业务前缀一个号段缓冲
+    private final ConcurrentHashMap<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+    //缓存当前日期，避免每次都格式化日期
+    private volatile Day today;
 
+    @Autowired
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this(stringRedisTemplate, ZoneId.systemDefault(), System::currentTimeMillis);
+    }
+
+    //测试时指定时区和时钟
+    RedisIdWorker(StringRedisTemplate stringRedisTemplate, ZoneId zone, LongSupplier clock) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.zone = zone;
+        this.clock = clock;
     }
 
     public long nextId(String keyPrefix){
-        LocalDateTime now = LocalDateTime.now();
-        //获取当前时间戳
-        long current = now.toEpochSecond(ZoneOffset.UTC);
-        //获取时间戳
-        long timestamp = current - START_TIMESTAMP;
-        //获取今天的日期
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-
-        //Redis自增，生成今天的序列号
-        String key = "inc:" + keyPrefix + ":" + date;
-        Long increment = stringRedisTemplate.opsForValue().increment(key);
+        long epochSecond = clock.getAsLong() / 1000;
+        Day day = currentDay(epochSecond);
+        //获取时间戳，与LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)保持一致
+        long timestamp = epochSecond + day.offsetSeconds - START_TIMESTAMP;
+
+        long increment;
+        if (segmentSize <= 1) {
+            //Redis自增，生成今天的序列号
+            increment = stringRedisTemplate.opsForValue().increment(incKey(keyPrefix, day.date));
+        } else {
+            //从本地号段中获取今天的序列号
+            increment = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day.date);
+        }
 
         //拼接时间戳和序列号
         return timestamp << SN | increment;
     }
+
+    private static String incKey(String keyPrefix, String date) {
+        return "inc:" + keyPrefix + ":" + date;
+    }
+
+    private Day currentDay(long epochSecond) {
+        Day day = today;
+        if (day == null || epochSecond < day.startSecond || epochSecond >= day.endSecond) {
+            day = new Day(epochSecond, zone);
+            today = day;
+        }
+        return day;
+    }
+
+    //向Redis申请一个号段，INCRBY返回号段的最大值
+    private Segment loadSegment(String keyPrefix, String date) {
+        Long max = stringRedisTemplate.opsForValue().increment(incKey(keyPrefix, date), segmentSize);
+        if (max == null) {
+            throw new IllegalStateException("申请号段失败：" + keyPrefix);
+        }
+        long min = max - segmentSize + 1;
+        return new Segment(date, min, max, min + (long) (segmentSize * prefetchRatio));
+    }
+
+    //当天的日期字符串，以及有效的时间范围和时区偏移
+    private static class Day {
+        private final String date;
+        private final long startSecond;
+        private final long endSecond;
+        private final int offsetSeconds;
+
+        private Day(long epochSecond, ZoneId zone) {
+            Instant instant = Instant.ofEpochSecond(epochSecond);
+            ZonedDateTime now = instant.atZone(zone);
+            LocalDate localDate = now.toLocalDate();
+            this.date = localDate.format(DATE_FORMATTER);
+            this.startSecond = localDate.atStartOfDay(zone).toEpochSecond();
+            //跨天或者时区偏移变化（夏令时）时重新计算
+            long end = localDate.plusDays(1).atStartOfDay(zone).toEpochSecond();
+            ZoneOffsetTransition transition = zone.getRules().nextTransition(instant);
+            if (transition != null) {
+                end = Math.min(end, transition.toEpochSecond());
+            }
+            this.endSecond = end;
+            this.offsetSeconds = now.getOffset().getTotalSeconds();
+        }
+    }
+
+    //号段，[cursor, max]之间的序列号由本节点独占
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long max;
+        private final long prefetchAt;
+
+        private Segment(String date, long min, long max, long prefetchAt) {
+            this.date = date;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    //双号段缓冲，当前号段用尽前异步预取下一个号段
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(String date) {
+            while (true) {
+                Segment segment = current;
+                //跨天瞬间仍持有前一天日期的线程，直接自增，不替换新一天的号段
+                if (segment != null && date.compareTo(segment.date) < 0) {
+                    return stringRedisTemplate.opsForValue().increment(incKey(keyPrefix, date));
+                }
+                //号段属于今天才能使用，保证跨天后序列号不会与新的一天重复
+                if (segment != null && segment.date.equals(date)) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.max) {
+                        //只有取到预取位置的线程触发预取
+                        if (value == segment.prefetchAt) {
+                            prefetch(segment);
+                        }
+                        return value;
+                    }
+                }
+                switchSegment(segment, date);
+            }
+        }
+
+        //与切换号段互斥，号段已被切换或者已有预取时不再预取，避免覆盖下一个号段
+        private synchronized void prefetch(Segment segment) {
+            if (current != segment || next != null) {
+                return;
+            }
+            String date = segment.date;
+            next = CompletableFuture.supplyAsync(() -> loadSegment(keyPrefix, date), SEGMENT_PREFETCH_EXECUTOR);
+        }
+
+        //号段用尽或者已跨天，切换到下一个号段
+        private synchronized void switchSegment(Segment expired, String date) {
+            //其他线程已经切换过了
+            if (current != expired) {
+                return;
+            }
+            Segment segment = null;
+            CompletableFuture<Segment> future = next;
+            next = null;
+            if (future != null) {
+                try {
+                    segment = future.join();
+                } catch (Exception e) {
+                    log.error("预取号段失败", e);
+                }
+            }
+            if (segment == null || !segment.date.equals(date)) {
+                segment = loadSegment(keyPrefix, date);
+            }
+            current = segment;
+        }
+    }
 }
@@ -1,19 +1,40 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
+    //初始化lua脚本，一次往返完成查询用户和按需刷新有效期
+    private static final DefaultRedisScript<List> TOKEN_SCRIPT;
+    static {
+        TOKEN_SCRIPT = new DefaultRedisScript<>();
+        //设置脚本位置
+        TOKEN_SCRIPT.setLocation(new ClassPathResource("lua/token.lua"));
+        //设置返回值类型
+        TOKEN_SCRIPT.setResultType(List.class);
+    }
+
     private StringRedisTemplate stringRedisTemplate;
+    //本地缓存已解析的用户，短时间内的重复请求不再访问Redis
+    private final LRUCache<String, UserDTO> userCache = CacheUtil.newLRUCache(
+            RedisConstants.LOGIN_USER_LOCAL_SIZE,
+            TimeUnit.SECONDS.toMillis(RedisConstants.LOGIN_USER_LOCAL_TTL));
 
     public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
@@ -27,20 +48,30 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if (StrUtil.isBlank(token)) {
             return true;
         }
-        //获取用户信息
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(RedisConstants.LOGIN_USER_KEY + token);
-        //用户信息不存在，直接放行，不添加到ThreadLocal
-        if (userMap.isEmpty()){
-            return true;
+        //先查本地缓存，读取不延长本地有效期，保证每10秒至少访问一次Redis刷新token有效期
+        UserDTO user = userCache.get(token, false);
+        if (user == null) {
+            //获取用户信息，剩余有效期不足时同时刷新有效期
+            List<String> userList = stringRedisTemplate.execute(
+                    TOKEN_SCRIPT,
+                    Collections.emptyList(),
+                    RedisConstants.LOGIN_USER_KEY + token,
+                    String.valueOf(TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_REFRESH_TTL)),
+                    String.valueOf(TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL)));
+            //用户信息不存在，直接放行，不添加到ThreadLocal
+            if (userList == null || userList.isEmpty()){
+                return true;
+            }
+            Map<Object, Object> userMap = new HashMap<>(userList.size());
+            for (int i = 0; i + 1 < userList.size(); i += 2) {
+                userMap.put(userList.get(i), userList.get(i + 1));
+            }
+            //将map转换成UserDto
+            user = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+            userCache.put(token, user);
         }
-        //将map转换成UserDto
-        UserDTO user = BeanUtil.fillBeanWithMap(userMap,new UserDTO(),false);
         //保存到TheadLocal
         UserHolder.saveUser(user);
-        //刷新有效期
-        stringRedisTemplate.expire(RedisConstants.LOGIN_USER_KEY + token, //key
-                RedisConstants.LOGIN_USER_TTL, // 30
-                TimeUnit.MINUTES); //分钟
         //放行
         return true;
     }
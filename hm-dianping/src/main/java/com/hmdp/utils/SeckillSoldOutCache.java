@@ -0,0 +1,50 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@Component
+public class SeckillSoldOutCache {
+    private final StringRedisTemplate stringRedisTemplate;
+    //本地售罄标记，设置有效期，防止与补充库存的通知交错后一直处于售罄状态
+    private final LRUCache<Long, Boolean> soldOut = CacheUtil.newLRUCache(
+            1024,
+            TimeUnit.SECONDS.toMillis(RedisConstants.SECKILL_SOLD_OUT_TTL));
+
+    public SeckillSoldOutCache(StringRedisTemplate stringRedisTemplate,
+                               RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        //订阅售罄频道，消息为优惠券id表示售罄，为负的优惠券id表示已补充库存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            long voucherId = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (voucherId > 0) {
+                soldOut.put(voucherId, Boolean.TRUE);
+            } else {
+                soldOut.remove(-voucherId);
+            }
+        }, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.containsKey(voucherId);
+    }
+
+    //标记售罄，并通知所有节点
+    public void markSoldOut(Long voucherId) {
+        soldOut.put(voucherId, Boolean.TRUE);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    //清除售罄标记，并通知所有节点
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, String.valueOf(-voucherId));
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.Data;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+@Component
+public class SeckillVoucherCache {
+    private final StringRedisTemplate stringRedisTemplate;
+    //本地缓存秒杀券的时间和状态，秒杀请求不再查询数据库
+    private final LRUCache<Long, VoucherMeta> localCache = CacheUtil.newLRUCache(
+            1024,
+            TimeUnit.SECONDS.toMillis(RedisConstants.SECKILL_VOUCHER_LOCAL_TTL));
+
+    //正在从数据库加载的秒杀券，同一张券同时只加载一次，不同的券互不阻塞
+    private final Map<Long, CompletableFuture<VoucherMeta>> loading = new ConcurrentHashMap<>();
+
+    private final ISeckillVoucherService seckillVoucherService;
+    private final VoucherMapper voucherMapper;
+
+    public SeckillVoucherCache(StringRedisTemplate stringRedisTemplate,
+                               ISeckillVoucherService seckillVoucherService,
+                               VoucherMapper voucherMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillVoucherService = seckillVoucherService;
+        this.voucherMapper = voucherMapper;
+    }
+
+    //预热秒杀券信息到Redis和本地缓存，shards为库存分片数量
+    public void save(Voucher voucher, int shards) {
+        VoucherMeta meta = new VoucherMeta();
+        meta.setBeginTime(toEpochMilli(voucher.getBeginTime()));
+        meta.setEndTime(toEpochMilli(voucher.getEndTime()));
+        meta.setStatus(voucher.getStatus() == null ? 1 : voucher.getStatus());
+        meta.setShards(shards);
+        meta.setLoadTime(System.currentTimeMillis());
+        write(voucher.getId(), meta);
+        localCache.put(voucher.getId(), meta);
+    }
+
+    //查询秒杀券信息，本地缓存未命中时从Redis加载，读取不延长本地有效期
+    //Redis中的时间和状态超过刷新周期后重新从数据库加载，下架等变更最多延迟两个有效期
+    public VoucherMeta get(Long voucherId) {
+        VoucherMeta meta = localCache.get(voucherId, false);
+        if (meta != null) {
+            return meta;
+        }
+        meta = read(voucherId);
+        if (meta == null || isStale(meta)) {
+            meta = load(voucherId, meta);
+        }
+        localCache.put(voucherId, meta);
+        return meta;
+    }
+
+    //同一张券只由一个线程加载，其他线程等待加载结果
+    private VoucherMeta load(Long voucherId, VoucherMeta cached) {
+        CompletableFuture<VoucherMeta> future = new CompletableFuture<>();
+        CompletableFuture<VoucherMeta> running = loading.putIfAbsent(voucherId, future);
+        if (running != null) {
+            return running.join();
+        }
+        try {
+            VoucherMeta meta = loadFromDb(voucherId, cached);
+            future.complete(meta);
+            return meta;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(voucherId, future);
+        }
+    }
+
+    //从数据库加载时间和状态并写回Redis，分片数量只在创建时确定，沿用Redis中的值
+    private VoucherMeta loadFromDb(Long voucherId, VoucherMeta cached) {
+        VoucherMeta meta = new VoucherMeta();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        //不是秒杀券，只在本地缓存，状态为null时拒绝秒杀
+        if (seckillVoucher == null) {
+            return meta;
+        }
+        Voucher voucher = voucherMapper.selectById(voucherId);
+        meta.setBeginTime(toEpochMilli(seckillVoucher.getBeginTime()));
+        meta.setEndTime(toEpochMilli(seckillVoucher.getEndTime()));
+        meta.setStatus(voucher == null || voucher.getStatus() == null ? 1 : voucher.getStatus());
+        meta.setShards(cached == null ? null : cached.getShards());
+        meta.setLoadTime(System.currentTimeMillis());
+        write(voucherId, meta);
+        return meta;
+    }
+
+    private static boolean isStale(VoucherMeta meta) {
+        return meta.getLoadTime() == null || System.currentTimeMillis() - meta.getLoadTime()
+                > TimeUnit.SECONDS.toMillis(RedisConstants.SECKILL_VOUCHER_REFRESH_TTL);
+    }
+
+    //读取Redis中的秒杀券信息，不存在时返回null
+    private VoucherMeta read(Long voucherId) {
+        Map<Object, Object> metaMap = stringRedisTemplate.opsForHash()
+                .entries(RedisConstants.SECKILL_VOUCHER_KEY + voucherId);
+        if (metaMap.isEmpty()) {
+            return null;
+        }
+        VoucherMeta meta = new VoucherMeta();
+        meta.setBeginTime(parseLong(metaMap.get("beginTime")));
+        meta.setEndTime(parseLong(metaMap.get("endTime")));
+        Long status = parseLong(metaMap.get("status"));
+        meta.setStatus(status == null ? null : status.intValue());
+        Long shards = parseLong(metaMap.get("shards"));
+        meta.setShards(shards == null ? null : shards.intValue());
+        meta.setLoadTime(parseLong(metaMap.get("loadTime")));
+        return meta;
+    }
+
+    private void write(Long voucherId, VoucherMeta meta) {
+        Map<String, String> metaMap = new HashMap<>(8);
+        if (meta.getBeginTime() != null) {
+            metaMap.put("beginTime", meta.getBeginTime().toString());
+        }
+        if (meta.getEndTime() != null) {
+            metaMap.put("endTime", meta.getEndTime().toString());
+        }
+        metaMap.put("status", meta.getStatus().toString());
+        if (meta.getShards() != null) {
+            metaMap.put("shards", meta.getShards().toString());
+        }
+        metaMap.put("loadTime", meta.getLoadTime().toString());
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, metaMap);
+    }
+
+    private static Long toEpochMilli(LocalDateTime time) {
+        return time == null ? null : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static Long parseLong(Object value) {
+        return value == null || StrUtil.isBlank(value.toString()) ? null : Long.valueOf(value.toString());
+    }
+
+    @Data
+    public static class VoucherMeta {
+        //生效时间，毫秒时间戳
+        private Long beginTime;
+        //失效时间，毫秒时间戳
+        private Long endTime;
+        //1,上架; 2,下架; 3,过期
+        private Integer status;
+        //库存分片数量
+        private Integer shards;
+        //从数据库加载的时间，毫秒时间戳
+        private Long loadTime;
+
+        //未记录分片数量的优惠券按未分片处理
+        public int shardCount() {
+            return shards == null || shards < 1 ? 1 : shards;
+        }
+
+        //判断当前是否可以秒杀，没有状态说明秒杀券不存在，时间未知时不做限制
+        public String check(long now) {
+            if (status == null) {
+                return "秒杀券不存在";
+            }
+            if (status != 1) {
+                return "优惠券已下架";
+            }
+            if ((beginTime != null && now < beginTime) || (endTime != null && now > endTime)) {
+                return "未在规定时间内";
+            }
+            return null;
+        }
+    }
+}
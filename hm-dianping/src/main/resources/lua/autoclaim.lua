@@ -0,0 +1,10 @@
+local queueName = KEYS[1];  --stream名称
+local groupName = ARGV[1];  --消费者组
+local consumer = ARGV[2];   --认领消息的消费者
+local minIdle = ARGV[3];    --最小空闲时间，毫秒
+local startId = ARGV[4];    --扫描起始id
+local count = ARGV[5];      --本次最多认领数量
+
+--认领空闲超时的pending消息，返回 {下次扫描起始id, {{id, {k1, v1, ···}}, ···}}
+--XAUTOCLAIM stream.orders g1 consumer minIdle startId COUNT count
+return redis.call('xautoclaim', queueName, groupName, consumer, minIdle, startId, 'COUNT', count);
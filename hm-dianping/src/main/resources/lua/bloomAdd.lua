@@ -0,0 +1,13 @@
+--KEYS[1]为正式位图，KEYS[2]为初始化中的位图，ARGV为元素对应的各个位置
+--只写入已经存在的位图，避免在初始化之前创建出不完整的正式位图
+local added = 0;
+for i = 1, #KEYS do
+    if (redis.call('exists', KEYS[i]) == 1) then
+        for j = 1, #ARGV do
+            redis.call('setbit', KEYS[i], ARGV[j], 1);
+        end
+        added = added + 1;
+    end
+end
+
+return added;
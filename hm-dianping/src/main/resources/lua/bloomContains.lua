@@ -0,0 +1,14 @@
+local key = KEYS[1];  --布隆过滤器位图
+
+--位图还没有初始化完成，不做过滤
+if (redis.call('exists', key) == 0) then
+    return 1;
+end
+--ARGV为元素对应的各个位置，任意一位为0说明一定不存在
+for i = 1, #ARGV do
+    if (redis.call('getbit', key, ARGV[i]) == 0) then
+        return 0;
+    end
+end
+
+return 1;
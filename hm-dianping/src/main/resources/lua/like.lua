@@ -0,0 +1,25 @@
+local likedKey = KEYS[1];  --blog的点赞用户集合
+local hotKey = KEYS[2];    --点赞排行榜
+local dirtyKey = KEYS[3];  --待刷新到数据库的blogId集合
+local blogId = ARGV[1];    --blogId
+local userId = ARGV[2];    --用户id
+local now = ARGV[3];       --点赞时间戳
+
+--排行榜中缺少该blog（例如排行榜重建中），返回-1，由调用方补充后重试
+if (not redis.call('zscore', hotKey, blogId)) then
+    return -1;
+end
+--判断是否已经点赞
+if (redis.call('zscore', likedKey, userId)) then
+    --已经点赞，取消点赞
+    redis.call('zrem', likedKey, userId);
+    redis.call('zincrby', hotKey, -1, blogId);
+    redis.call('sadd', dirtyKey, blogId);
+    return 0;
+end
+--未点赞，点赞
+redis.call('zadd', likedKey, now, userId);
+redis.call('zincrby', hotKey, 1, blogId);
+redis.call('sadd', dirtyKey, blogId);
+
+return 1;
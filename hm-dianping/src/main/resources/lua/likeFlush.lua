@@ -0,0 +1,13 @@
+local dirtyKey = KEYS[1];     --待刷新的blogId集合
+local flushingKey = KEYS[2];  --刷新中的blogId集合
+
+--上一次刷新未完成（例如节点宕机），继续处理上一次的数据
+if (redis.call('exists', flushingKey) == 0) then
+    if (redis.call('exists', dirtyKey) == 0) then
+        return {};
+    end
+    --将待刷新的blogId整体转移，之后的点赞写入新的dirty集合
+    redis.call('rename', dirtyKey, flushingKey);
+end
+
+return redis.call('smembers', flushingKey);
@@ -0,0 +1,27 @@
+--分片的库存、下单用户和订单stream使用相同的hash tag {voucherId:shard}，保证在同一个slot
+local stockKey = KEYS[1];   --分片库存
+local orderKey = KEYS[2];   --分片下单用户
+local streamKey = KEYS[3];  --分片订单stream
+local voucherId = ARGV[1];  --优惠券id
+local userId = ARGV[2];     --用户id
+local orderId = ARGV[3];    --订单id
+
+--判断库存是否充足，分片之间的库存迁移由调用方在脚本外完成
+if (tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    --当前分片库存不足，返回1
+    return 1;
+end
+--判断用户是否已经下单，同一用户总是落在同一个分片
+if (redis.call('sismember', orderKey, userId) == 1) then
+    --用户已经下单，返回2
+    return 2;
+end
+--减扣库存
+redis.call('incrby', stockKey, -1);
+--将用户id插入到set合集中
+redis.call('sadd', orderKey, userId);
+
+--发送消息到分片的队列中，XADD stream.orders:{voucherId:shard} * k1 v1 k2 v2 ···
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+
+return 0;
@@ -0,0 +1,11 @@
+local stockKey = KEYS[1];  --被迁出库存的分片
+
+--取出该分片一半的剩余库存，返回取出的数量
+local stock = tonumber(redis.call('get', stockKey) or '0');
+if (stock <= 0) then
+    return 0;
+end
+local moved = math.ceil(stock / 2);
+redis.call('incrby', stockKey, -moved);
+
+return moved;
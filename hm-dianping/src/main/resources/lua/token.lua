@@ -0,0 +1,16 @@
+local key = ARGV[1];                        --登录token的key
+local refreshThreshold = tonumber(ARGV[2]); --剩余有效期低于该值时才刷新，毫秒
+local ttl = ARGV[3];                        --刷新后的有效期，毫秒
+
+--获取用户信息
+local user = redis.call('hgetall', key);
+--用户信息不存在，返回空列表
+if (#user == 0) then
+    return user;
+end
+--剩余有效期不足，刷新有效期
+if (redis.call('pttl', key) < refreshThreshold) then
+    redis.call('pexpire', key, ttl);
+end
+
+return user;
@@ -70,7 +70,7 @@ class HmDianPingApplicationTests {
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(10));
         //写入Redis
         stringRedisTemplate.opsForValue().set(
-                RedisConstants.CACHE_SHOP_KEY + "1",
+                RedisConstants.CACHE_SHOP_LOGICAL_KEY + "1",
                 JSONUtil.toJsonStr(redisData));
     }
 
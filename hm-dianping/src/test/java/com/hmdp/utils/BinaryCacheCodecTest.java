@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCacheCodecTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec(512);
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19, 123456789));
+        return shop;
+    }
+
+    private static Blog blog(String content) {
+        Blog blog = new Blog();
+        blog.setId(4L);
+        blog.setShopId(4L);
+        blog.setUserId(2L);
+        blog.setIcon("/imgs/icons/user2-icon.jpg");
+        blog.setName("可可今天不吃肉");
+        blog.setIsLike(Boolean.TRUE);
+        blog.setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩");
+        blog.setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg");
+        blog.setContent(content);
+        blog.setLiked(7);
+        blog.setComments(104);
+        blog.setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1));
+        return blog;
+    }
+
+    @Test
+    void shopRoundTrip() {
+        Shop shop = shop();
+        byte[] bytes = codec.encode(shop);
+
+        assertTrue(BinaryCacheCodec.isBinary(bytes));
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void blogRoundTrip() {
+        Blog blog = blog("生活就是一半烟火，一半诗意");
+        byte[] bytes = codec.encode(blog);
+
+        assertTrue(BinaryCacheCodec.isBinary(bytes));
+        assertEquals(blog, codec.decode(bytes, Blog.class));
+    }
+
+    @Test
+    void userDtoRoundTrip() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_slxaxy2au9f3tanffaxr");
+        byte[] bytes = codec.encode(user);
+
+        UserDTO decoded = codec.decode(bytes, UserDTO.class);
+        assertEquals(user, decoded);
+        //null字段解码后仍为null
+        assertNull(decoded.getIcon());
+    }
+
+    @Test
+    void redisDataRoundTrip() {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop());
+        redisData.setExpireTime(LocalDateTime.of(2024, 5, 1, 12, 0, 0, 500_000_000));
+        redisData.setDelta(35L);
+        byte[] bytes = codec.encode(redisData);
+
+        assertTrue(BinaryCacheCodec.isBinary(bytes));
+        RedisData decoded = codec.decodeRedisData(bytes, Shop.class);
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(redisData.getDelta(), decoded.getDelta());
+        assertEquals(redisData.getData(), decoded.getData());
+    }
+
+    @Test
+    void compressesLargeValues() {
+        Blog blog = blog(StrUtil.repeat("今天的牛排非常好吃，", 200));
+        byte[] compressed = codec.encode(blog);
+        byte[] plain = new BinaryCacheCodec(0).encode(blog);
+
+        //第三个字节为标志位，1表示压缩
+        assertEquals(1, compressed[2]);
+        assertEquals(0, plain[2]);
+        assertTrue(compressed.length < plain.length);
+        assertEquals(blog, codec.decode(compressed, Blog.class));
+        //不压缩的编码也能被任意阈值的编码器解码
+        assertEquals(blog, codec.decode(plain, Blog.class));
+    }
+
+    @Test
+    void schemaMismatchDecodesToNull() {
+        byte[] bytes = codec.encode(shop());
+        //按其他结构的类解码
+        assertNull(codec.decode(bytes, Blog.class));
+
+        //模拟实体类字段变化：头部之后的4个字节为字段结构的hash
+        byte[] changed = Arrays.copyOf(bytes, bytes.length);
+        changed[3] ^= 0x5A;
+        assertNull(codec.decode(changed, Shop.class));
+    }
+
+    @Test
+    void unknownVersionDecodesToNull() {
+        byte[] bytes = codec.encode(shop());
+        bytes[1] = 99;
+        assertNull(codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void truncatedValuesDecodeToNull() {
+        byte[] bytes = codec.encode(shop());
+        //只有魔数或者头部不完整
+        assertNull(codec.decode(Arrays.copyOf(bytes, 1), Shop.class));
+        assertNull(codec.decode(Arrays.copyOf(bytes, 2), Shop.class));
+        //数据被截断
+        assertNull(codec.decode(Arrays.copyOf(bytes, bytes.length / 2), Shop.class));
+        assertNull(codec.decodeRedisData(Arrays.copyOf(bytes, 2), Shop.class));
+    }
+
+    @Test
+    void malformedJsonDecodesToNull() {
+        byte[] json = "{\"id\":1,\"name\":".getBytes(StandardCharsets.UTF_8);
+
+        assertNull(codec.decode(json, Shop.class));
+        assertNull(codec.decodeRedisData(json, Shop.class));
+        assertNull(new JsonCacheCodec().decode(json, Shop.class));
+    }
+
+    @Test
+    void readsExistingJsonValues() {
+        Shop shop = shop();
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        byte[] json = JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(BinaryCacheCodec.isBinary(json));
+        assertEquals(shop, codec.decode(json, Shop.class));
+    }
+
+    @Test
+    void readsExistingJsonRedisData() {
+        Shop shop = shop();
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.of(2024, 5, 1, 12, 0, 0));
+        byte[] json = JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+
+        RedisData decoded = codec.decodeRedisData(json, Shop.class);
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(shop, decoded.getData());
+    }
+
+    @Test
+    void unsupportedTypesFallBackToJson() {
+        List<Long> ids = Arrays.asList(1L, 2L, 3L);
+        byte[] bytes = codec.encode(ids);
+
+        assertFalse(BinaryCacheCodec.isBinary(bytes));
+        assertEquals("[1,2,3]", new String(bytes, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+class RedisIdWorkerTest {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 5000;
+
+    //用内存中的计数器代替Redis的INCR和INCRBY
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate stubRedis() {
+        ValueOperations<String, String> ops = Mockito.mock(ValueOperations.class, Mockito.withSettings().stubOnly());
+        when(ops.increment(anyString())).thenAnswer(invocation ->
+                counter(invocation.getArgument(0)).incrementAndGet());
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation ->
+                counter(invocation.getArgument(0)).addAndGet(invocation.getArgument(1)));
+        StringRedisTemplate template = Mockito.mock(StringRedisTemplate.class, Mockito.withSettings().stubOnly());
+        when(template.opsForValue()).thenReturn(ops);
+        return template;
+    }
+
+    private AtomicLong counter(String key) {
+        return counters.computeIfAbsent(key, k -> new AtomicLong());
+    }
+
+    //号段很小，频繁切换和预取
+    private RedisIdWorker worker(ZoneId zone, LongSupplier clock) {
+        RedisIdWorker worker = new RedisIdWorker(stubRedis(), zone, clock);
+        ReflectionTestUtils.setField(worker, "segmentSize", 10L);
+        ReflectionTestUtils.setField(worker, "prefetchRatio", 0.5);
+        return worker;
+    }
+
+    //每次取时间前进1毫秒，多个线程交替执行，会有线程在跨天后仍然使用前一天的时间
+    private Set<Long> generate(RedisIdWorker worker) throws InterruptedException {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicLong duplicates = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            es.submit(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < IDS_PER_THREAD; j++) {
+                        if (!ids.add(worker.nextId("order"))) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        es.shutdown();
+        assertEquals(0, duplicates.get());
+        assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+        return ids;
+    }
+
+    @Test
+    void uniqueAcrossSegmentsAndMidnight() throws InterruptedException {
+        ZoneId zone = ZoneId.of("Asia/Shanghai");
+        long midnight = LocalDateTime.of(2024, 3, 2, 0, 0).atZone(zone).toInstant().toEpochMilli();
+        AtomicLong now = new AtomicLong(midnight - 20_000);
+
+        generate(worker(zone, now::getAndIncrement));
+
+        //两天的序列号都已使用
+        assertTrue(counters.containsKey("inc:order:2024:03:01"));
+        assertTrue(counters.containsKey("inc:order:2024:03:02"));
+    }
+
+    @Test
+    void uniqueWhenDaylightSavingRepeatsAnHour() throws InterruptedException {
+        //2023-11-05 02:00 EDT回拨到01:00 EST，本地时间戳会重复一小时
+        ZoneId zone = ZoneId.of("America/New_York");
+        long transition = LocalDateTime.of(2023, 11, 5, 6, 0).atZone(ZoneId.of("UTC")).toInstant().toEpochMilli();
+        AtomicLong now = new AtomicLong(transition - 20_000);
+
+        generate(worker(zone, now::getAndIncrement));
+
+        //回拨前后属于同一天，共用同一个计数器
+        assertEquals(1, counters.size());
+        assertTrue(counters.containsKey("inc:order:2023:11:05"));
+    }
+
+    @Test
+    void incrementsDirectlyWithoutSegments() throws InterruptedException {
+        ZoneId zone = ZoneId.of("Asia/Shanghai");
+        long midnight = LocalDateTime.of(2024, 3, 2, 0, 0).atZone(zone).toInstant().toEpochMilli();
+        AtomicLong now = new AtomicLong(midnight - 20_000);
+        RedisIdWorker worker = worker(zone, now::getAndIncrement);
+        ReflectionTestUtils.setField(worker, "segmentSize", 1L);
+
+        generate(worker);
+
+        assertEquals(THREADS * IDS_PER_THREAD,
+                counters.values().stream().mapToLong(AtomicLong::get).sum());
+    }
+}